@@ -1,9 +1,11 @@
 package lah.spectre;
 
 import java.io.File;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 
+import lah.spectre.stream.DigestingProcessor;
 import lah.spectre.stream.Streams;
 
 /**
@@ -26,13 +28,43 @@ public class SpectreGet {
 	 * @throws Exception
 	 */
 	public static File downloadToFile(String uri, File output_file) throws Exception {
+		return downloadToFile(uri, output_file, null, null);
+	}
+
+	/**
+	 * Download a file and verify its digest on the fly, without reading the file again
+	 * 
+	 * @param uri
+	 *            URI of the file to download
+	 * @param output_file
+	 *            The expected downloaded File
+	 * @param algorithm
+	 *            Name of the digest algorithm (for example, {@code SHA-256} or {@code CRC32}), see
+	 *            {@link DigestingProcessor}; {@literal null} to download without verification
+	 * @param expected_digest
+	 *            Expected digest in hexadecimal, {@literal null} to accept any digest
+	 * @return
+	 * @throws Exception
+	 *             in particular {@link DigestingProcessor.MismatchException} if the downloaded file does not have the
+	 *             expected digest, in which case it is deleted
+	 */
+	public static File downloadToFile(String uri, File output_file, String algorithm, String expected_digest)
+			throws Exception {
 		if (!output_file.getParentFile().exists())
 			output_file.getParentFile().mkdirs();
 		try {
 			URL url = new URL(uri);
 			URLConnection urlconn = url.openConnection();
 			urlconn.connect();
-			Streams.streamToFile(urlconn.getInputStream(), output_file, true, false);
+			InputStream input_stream = urlconn.getInputStream();
+			try {
+				if (algorithm == null)
+					Streams.streamToFile(input_stream, output_file, true, false);
+				else
+					Streams.streamToFile(input_stream, output_file, true, false, algorithm, expected_digest);
+			} finally {
+				input_stream.close();
+			}
 			return output_file.exists() ? output_file : null;
 		} catch (Exception e) {
 			output_file.delete(); // for safety, delete the file on failure
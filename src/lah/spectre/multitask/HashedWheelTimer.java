@@ -0,0 +1,385 @@
+package lah.spectre.multitask;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for large numbers of timeouts, most of which are cancelled before they expire (such as the timeouts of
+ * external processes). The timeouts are hashed into the buckets of a wheel of fixed duration ticks, which a single
+ * daemon thread visits one per tick; scheduling and cancelling a timeout are O(1) and do not involve the thread, and
+ * the expiration is accurate to one tick.
+ * 
+ * The tasks run on the timer thread and must therefore be short, handing any lengthy work over to another thread. The
+ * thread is started by the first timeout scheduled, parks while no timeout is pending and is stopped by
+ * {@link #shutdown()}, which drops the pending timeouts; being a daemon, it never prevents the JVM from exiting.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class HashedWheelTimer {
+
+	/**
+	 * Doubly-linked list of the timeouts hashed to a slot of the wheel, accessed by the timer thread only
+	 */
+	private static final class Bucket {
+
+		private Timeout head, tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		/**
+		 * Remove the timeouts of the current round, running those that are due
+		 */
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remaining_rounds <= 0) {
+					remove(timeout);
+					if (timeout.deadline <= deadline)
+						timeout.expire();
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+				} else {
+					timeout.remaining_rounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null)
+				timeout.prev.next = timeout.next;
+			if (timeout.next != null)
+				timeout.next.prev = timeout.prev;
+			if (timeout == head)
+				head = timeout.next;
+			if (timeout == tail)
+				tail = timeout.prev;
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+			timeout.timer.pending_count.decrementAndGet();
+		}
+
+	}
+
+	/**
+	 * Handle of a scheduled task
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static final class Timeout {
+
+		private static final int CANCELLED = 1, EXPIRED = 2, PENDING = 0;
+
+		private Bucket bucket;
+
+		/**
+		 * Expiration time relative to the start of the timer, in nanoseconds
+		 */
+		private final long deadline;
+
+		private Timeout prev, next;
+
+		private long remaining_rounds;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		private final Runnable task;
+
+		private final HashedWheelTimer timer;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the task if it has not run yet
+		 * 
+		 * @return {@literal true} if the task was cancelled, {@literal false} if it has run or was already cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			// The timer thread unlinks it from its bucket
+			timer.cancelled_timeouts.add(this);
+			return true;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED))
+				return;
+			try {
+				task.run();
+			} catch (Throwable e) {
+				// A failing task must not stop the timer
+			}
+		}
+
+		public Runnable getTask() {
+			return task;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			long tick = 0;
+			while (!shut_down) {
+				if (pending_count.get() == 0) {
+					// Nothing to expire: sleep until a timeout is scheduled rather than visiting empty buckets
+					LockSupport.park(this);
+					// The wheel is empty, so the ticks missed meanwhile can be skipped
+					tick = Math.max(tick, (System.nanoTime() - start_time) / tick_duration);
+					continue;
+				}
+				long deadline = start_time + (tick + 1) * tick_duration;
+				long sleep = deadline - System.nanoTime();
+				if (sleep > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleep);
+					} catch (InterruptedException e) {
+						// Interrupted by shutdown
+					}
+					continue;
+				}
+				removeCancelledTimeouts();
+				transferNewTimeouts(tick);
+				wheel[(int) (tick & mask)].expire(deadline - start_time);
+				tick++;
+			}
+		}
+
+	}
+
+	/**
+	 * Default duration of a tick, in milliseconds
+	 */
+	public static final long DEFAULT_TICK_DURATION = 10;
+
+	/**
+	 * Default number of buckets of the wheel; with the default tick, a round of the wheel lasts about 5 seconds
+	 */
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static HashedWheelTimer default_timer;
+
+	/**
+	 * Maximum number of new timeouts hashed per tick, so that a burst of scheduling does not delay the expirations
+	 */
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	/**
+	 * Get the timer shared by the library (for the timeouts of {@code TimedProcess} and {@code TimedShell}); if it
+	 * has been shut down, a new shared timer is created. A timeout scheduled on a shared timer which is shut down in
+	 * the meantime goes to its successor, so that {@code getDefault().schedule(...)} never fails.
+	 * 
+	 * @return
+	 */
+	public static synchronized HashedWheelTimer getDefault() {
+		if (default_timer == null || default_timer.isShutDown()) {
+			default_timer = new HashedWheelTimer(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, "HashedWheelTimer");
+			default_timer.is_default = true;
+		}
+		return default_timer;
+	}
+
+	private final Queue<Timeout> cancelled_timeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * Whether this timer is (or was) the shared timer, see {@link #getDefault()}
+	 */
+	private boolean is_default;
+
+	private final int mask;
+
+	private final String name;
+
+	private final Queue<Timeout> new_timeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	private final AtomicLong pending_count = new AtomicLong();
+
+	private volatile boolean shut_down;
+
+	/**
+	 * Time the timer thread started, all deadlines are relative to it
+	 */
+	private volatile long start_time;
+
+	private volatile Thread thread;
+
+	/**
+	 * Duration of a tick in nanoseconds
+	 */
+	private final long tick_duration;
+
+	private final Bucket[] wheel;
+
+	/**
+	 * Construct a timer; its thread is started when the first timeout is scheduled
+	 * 
+	 * @param tick_duration
+	 *            Duration of a tick in milliseconds, that is, the accuracy of the timer
+	 * @param wheel_size
+	 *            Number of buckets, rounded up to a power of two; timeouts longer than a round of the wheel are
+	 *            visited once per round
+	 * @param name
+	 *            Name of the timer thread
+	 */
+	public HashedWheelTimer(long tick_duration, int wheel_size, String name) {
+		if (tick_duration <= 0 || wheel_size <= 0 || wheel_size > (1 << 30))
+			throw new IllegalArgumentException("Invalid tick duration or wheel size!");
+		int size = 1;
+		while (size < wheel_size)
+			size <<= 1;
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+		mask = size - 1;
+		this.tick_duration = TimeUnit.MILLISECONDS.toNanos(tick_duration);
+		this.name = name;
+	}
+
+	/**
+	 * Get the number of timeouts scheduled that have neither expired nor been removed after cancellation
+	 * 
+	 * @return
+	 */
+	public long getPendingCount() {
+		return pending_count.get();
+	}
+
+	public boolean isShutDown() {
+		return shut_down;
+	}
+
+	private void removeCancelledTimeouts() {
+		Timeout timeout;
+		while ((timeout = cancelled_timeouts.poll()) != null) {
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+
+	/**
+	 * Run a task once after a delay
+	 * 
+	 * @param task
+	 *            The task, which runs on the timer thread and must be short
+	 * @param delay
+	 *            Delay in milliseconds
+	 * @return The handle to cancel the task
+	 * @throws IllegalStateException
+	 *             if the timer has been shut down, unless it is the shared timer
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if (shut_down)
+			return scheduleAfterShutdown(task, delay);
+		// Only the first schedule takes the lock; start_time is published by the volatile write of the thread
+		if (thread == null)
+			start();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)) - start_time;
+		Timeout timeout = new Timeout(this, task, deadline);
+		pending_count.incrementAndGet();
+		new_timeouts.add(timeout);
+		if (shut_down && timeout.state.compareAndSet(Timeout.PENDING, Timeout.CANCELLED)) {
+			// Shut down meanwhile: the timeout may have been dropped already
+			return scheduleAfterShutdown(task, delay);
+		}
+		LockSupport.unpark(thread);
+		return timeout;
+	}
+
+	private Timeout scheduleAfterShutdown(Runnable task, long delay) {
+		if (is_default)
+			return getDefault().schedule(task, delay);
+		throw new IllegalStateException("Timer is shut down");
+	}
+
+	/**
+	 * Stop the timer thread and drop the pending timeouts, without running them
+	 * 
+	 * @return Number of timeouts dropped
+	 */
+	public long shutdown() {
+		synchronized (HashedWheelTimer.class) {
+			// The next getDefault() creates a new shared timer
+			if (default_timer == this)
+				default_timer = null;
+		}
+		Thread worker;
+		synchronized (this) {
+			shut_down = true;
+			worker = thread;
+		}
+		if (worker != null && worker != Thread.currentThread()) {
+			worker.interrupt();
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long dropped = pending_count.getAndSet(0);
+		new_timeouts.clear();
+		cancelled_timeouts.clear();
+		for (Bucket bucket : wheel)
+			bucket.head = bucket.tail = null;
+		return dropped;
+	}
+
+	private synchronized void start() {
+		if (thread != null)
+			return;
+		start_time = System.nanoTime();
+		thread = new Thread(new Worker(), name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Hash the timeouts scheduled since the last tick into the wheel
+	 */
+	private void transferNewTimeouts(long tick) {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = new_timeouts.poll();
+			if (timeout == null)
+				break;
+			if (timeout.isCancelled()) {
+				pending_count.decrementAndGet();
+				continue;
+			}
+			long expiration_tick = timeout.deadline / tick_duration;
+			timeout.remaining_rounds = (expiration_tick - tick) / wheel.length;
+			// A timeout already due goes to the current bucket
+			wheel[(int) (Math.max(expiration_tick, tick) & mask)].add(timeout);
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package lah.spectre.multitask;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Access to the virtual threads of recent JVMs (Java 21 and later) from code built for older ones: the executor is
+ * looked up by reflection, with a fallback to platform threads. Virtual threads suit the tasks of this library that
+ * mostly block on a stream or a process (draining an output, feeding an input), where a platform thread per task costs
+ * a kernel thread and its reserved stack for little work.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class VirtualThreads {
+
+	/**
+	 * {@code Executors.newVirtualThreadPerTaskExecutor()}, {@literal null} if the JVM has no virtual threads
+	 */
+	private static final Method new_virtual_thread_executor = lookUpVirtualThreadExecutor();
+
+	/**
+	 * Check if the JVM supports virtual threads
+	 * 
+	 * @return
+	 */
+	public static boolean isAvailable() {
+		return new_virtual_thread_executor != null;
+	}
+
+	private static Method lookUpVirtualThreadExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create an executor running each task on a new virtual thread; if the JVM has no virtual threads, the tasks run
+	 * on a cached pool of daemon platform threads instead
+	 * 
+	 * @param name
+	 *            Name prefix of the platform threads of the fallback pool
+	 * @return The executor, to shut down once done
+	 */
+	public static ExecutorService newPerTaskExecutor(final String name) {
+		if (new_virtual_thread_executor != null) {
+			try {
+				return (ExecutorService) new_virtual_thread_executor.invoke(null);
+			} catch (Exception e) {
+				// Preview feature disabled or similar: fall back
+			}
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+	}
+
+}
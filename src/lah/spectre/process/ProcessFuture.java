@@ -0,0 +1,314 @@
+package lah.spectre.process;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lah.spectre.interfaces.IExceptionHandler;
+import lah.spectre.interfaces.IResultListener;
+import lah.spectre.multitask.HashedWheelTimer;
+import lah.spectre.stream.IBufferProcessor;
+import lah.spectre.stream.StreamPump;
+import lah.spectre.stream.StreamRedirector;
+import lah.spectre.stream.Streams;
+
+/**
+ * Exit value of a process forked with {@link TimedShell#forkAsync}. No thread waits for the process: its standard
+ * output is drained by a {@link StreamPump} and its exit is polled on a {@link HashedWheelTimer} once the output ends,
+ * so that many processes can run at once with a handful of threads. Alternatively, the output and the exit are waited
+ * for by a task on an executor, typically of virtual threads (see {@link TimedShell#setExecutor(Executor)}).
+ * 
+ * The future completes with the exit value; or exceptionally with a {@link TimeoutException} as soon as the timeout is
+ * reached (the process and its descendants are then killed), with the exception raised by the standard output
+ * processor or the standard input producer (the process is then killed), or with a {@link CancellationException} if
+ * it is cancelled (the process is then killed as well).
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class ProcessFuture implements Future<Integer> {
+
+	/**
+	 * Delay (in milliseconds) between two checks of the exit of a process whose output has ended
+	 */
+	private static final long EXIT_POLL_DELAY = 10;
+
+	private boolean cancelled;
+
+	private final String[] command;
+
+	private boolean done;
+
+	private Exception exception;
+
+	private Integer exit_value;
+
+	private List<IResultListener<ProcessFuture>> listeners = new ArrayList<IResultListener<ProcessFuture>>();
+
+	private final Process process;
+
+	private ProcessKiller process_killer;
+
+	private StdInFeeder stdin_feeder;
+
+	private volatile StreamPump.Drain stdout_drain;
+
+	/**
+	 * Redirector whose file the process writes to directly, if any
+	 */
+	private StreamRedirector stdout_redirector;
+
+	private final HashedWheelTimer timer;
+
+	ProcessFuture(String[] command, Process process, HashedWheelTimer timer) {
+		this.command = command;
+		this.process = process;
+		this.timer = timer;
+	}
+
+	/**
+	 * Add a listener notified once the future is done, in any way; the listener is invoked at once if the future is
+	 * already done, otherwise on the thread completing it (a pump or timer thread), so it must be short
+	 * 
+	 * @param listener
+	 */
+	public void addListener(IResultListener<ProcessFuture> listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.onResultObtained(this);
+	}
+
+	/**
+	 * Wait for the process to exit once its output has ended, without blocking the current thread
+	 */
+	private void awaitExit(Exception stdout_exception) {
+		try {
+			process.exitValue();
+		} catch (IllegalThreadStateException e) {
+			final Exception exception = stdout_exception;
+			timer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					awaitExit(exception);
+				}
+
+			}, EXIT_POLL_DELAY);
+			return;
+		}
+		if (process_killer != null)
+			process_killer.cancel();
+		Streams.closeStream(process.getInputStream());
+		Streams.closeStream(process.getOutputStream());
+		Streams.closeStream(process.getErrorStream());
+		if (stdout_redirector != null) {
+			try {
+				stdout_redirector.moveToEnd();
+			} catch (IOException e) {
+				stdout_exception = e;
+			}
+		}
+		// Reading the output of a killed process may fail, the time out comes first
+		if (process_killer != null && process_killer.isTimeOut())
+			complete(null, new TimeoutException("Timeout while executing " + command[0]), false);
+		else if (stdout_exception != null)
+			complete(null, stdout_exception, false);
+		else if (stdin_feeder != null && stdin_feeder.getException() != null)
+			complete(null, stdin_feeder.getException(), false);
+		else
+			complete(process.exitValue(), null, false);
+	}
+
+	/**
+	 * Cancel the execution, killing the process
+	 */
+	@Override
+	public boolean cancel(boolean may_interrupt) {
+		if (!complete(null, new CancellationException("Execution of " + command[0] + " is cancelled."), true))
+			return false;
+		process.destroy();
+		if (stdout_drain != null)
+			stdout_drain.cancel();
+		return true;
+	}
+
+	private boolean complete(Integer exit_value, Exception exception, boolean cancelled) {
+		List<IResultListener<ProcessFuture>> listeners;
+		synchronized (this) {
+			if (done)
+				return false;
+			this.exit_value = exit_value;
+			this.exception = exception;
+			this.cancelled = cancelled;
+			done = true;
+			notifyAll();
+			listeners = this.listeners;
+			this.listeners = null;
+		}
+		for (IResultListener<ProcessFuture> listener : listeners)
+			listener.onResultObtained(this);
+		return true;
+	}
+
+	@Override
+	public synchronized Integer get() throws InterruptedException, ExecutionException {
+		while (!done)
+			wait();
+		return getResult();
+	}
+
+	@Override
+	public synchronized Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long remaining = unit.toNanos(timeout);
+		while (!done && remaining > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			remaining = deadline - System.nanoTime();
+		}
+		if (!done)
+			throw new TimeoutException("Execution of " + command[0] + " is not done.");
+		return getResult();
+	}
+
+	public String[] getCommand() {
+		return command;
+	}
+
+	/**
+	 * Get the exception the future completed with
+	 * 
+	 * @return The exception or {@literal null} if the process exited normally or is not done yet
+	 */
+	public synchronized Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * Get the exit value without waiting
+	 * 
+	 * @return The exit value or {@literal null} if the future is not done or completed exceptionally
+	 */
+	public synchronized Integer getExitValue() {
+		return exit_value;
+	}
+
+	public Process getProcess() {
+		return process;
+	}
+
+	private Integer getResult() throws ExecutionException {
+		if (cancelled)
+			throw (CancellationException) exception;
+		if (exception != null)
+			throw new ExecutionException(exception);
+		return exit_value;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Check if the process was killed by the time out
+	 * 
+	 * @return
+	 */
+	public boolean isTimeOut() {
+		return process_killer != null && process_killer.isTimeOut();
+	}
+
+	/**
+	 * Schedule the time out, start feeding the standard input and process the standard output on the executor if not
+	 * {@literal null}, on the pump otherwise
+	 * 
+	 * @param stdout_redirected
+	 *            Whether the process writes its output to the file of the processor, a {@link StreamRedirector}
+	 */
+	void start(final IBufferProcessor stdout_processor, boolean stdout_redirected, StdInFeeder stdin_feeder,
+			long timeout, StreamPump pump, Executor executor) {
+		if (timeout > 0) {
+			process_killer = new ProcessKiller(process, true) {
+
+				@Override
+				public void run() {
+					super.run();
+					if (isTimeOut()) {
+						// A background job out of reach may hold the output open: stop reading it, and complete now
+						// rather than once the output ends
+						Streams.closeStream(process.getInputStream());
+						complete(null, new TimeoutException("Timeout while executing " + command[0]), false);
+					}
+				}
+
+			};
+			process_killer.schedule(timer, timeout);
+		}
+		this.stdin_feeder = stdin_feeder;
+		if (stdin_feeder != null)
+			stdin_feeder.start(executor);
+		if (stdout_redirected) {
+			// The process writes to the file of the redirector itself: only its exit is awaited
+			stdout_redirector = (StreamRedirector) stdout_processor;
+			if (executor == null) {
+				awaitExit(null);
+				return;
+			}
+		}
+		if (executor != null) {
+			// The task blocks on the output then on the exit of the process
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					Exception stdout_exception = null;
+					try {
+						if (stdout_redirector == null)
+							Streams.processStream(stdout_processor, process.getInputStream());
+						process.waitFor();
+					} catch (Exception e) {
+						process.destroy();
+						stdout_exception = e;
+					}
+					awaitExit(stdout_exception);
+				}
+
+			});
+			return;
+		}
+		stdout_drain = pump.submit(process.getInputStream(), stdout_processor, process, new IExceptionHandler() {
+
+			@Override
+			public void onException(Exception e) {
+				// The process can no longer write its output
+				process.destroy();
+				awaitExit(e);
+			}
+
+		}, new IResultListener<Void>() {
+
+			@Override
+			public void onResultObtained(Void result) {
+				awaitExit(null);
+			}
+
+		});
+	}
+
+}
@@ -1,31 +1,115 @@
 package lah.spectre.process;
 
+import java.lang.reflect.Method;
 import java.util.TimerTask;
 
+import lah.spectre.multitask.HashedWheelTimer;
+
 /**
- * Extension of {@link TimerTask} that will kill a process running in background
+ * Extension of {@link TimerTask} that will kill a process running in background; it is scheduled on a
+ * {@link HashedWheelTimer} with {@link #schedule(HashedWheelTimer, long)}
+ * 
+ * A killer can also kill the descendants of the process, such as the commands started by a shell, which would
+ * otherwise survive it and keep its standard output open. This needs the {@code ProcessHandle} API of Java 9 and
+ * later, looked up by reflection; on older JVMs only the process itself is killed.
  * 
  * @author L.A.H.
  * 
  */
 class ProcessKiller extends TimerTask {
 
+	/**
+	 * {@code Process.descendants()}, {@code ProcessHandle.destroyForcibly()} and {@code Stream.toArray()};
+	 * {@literal null} if the JVM has no {@code ProcessHandle}
+	 */
+	private static final Method descendants = lookUp("java.lang.Process", "descendants"),
+			destroy_forcibly = lookUp("java.lang.ProcessHandle", "destroyForcibly"),
+			to_array = lookUp("java.util.stream.Stream", "toArray");
+
+	/**
+	 * Kill a process and forcibly kill all its descendants; they are listed before the process is killed since its
+	 * children are no longer its descendants once it is gone, and killed after so that the process cannot react to
+	 * the death of its children (for instance, a shell going on with the next command)
+	 * 
+	 * @param process
+	 * @return {@literal false} if the JVM cannot list the descendants of a process, in which case only the process
+	 *         itself is killed
+	 */
+	static boolean destroyTree(Process process) {
+		Object[] handles = null;
+		if (descendants != null && destroy_forcibly != null && to_array != null) {
+			try {
+				handles = (Object[]) to_array.invoke(descendants.invoke(process));
+			} catch (Exception e) {
+				// Not listed, not killed
+			}
+		}
+		process.destroy();
+		if (handles == null)
+			return false;
+		for (Object handle : handles) {
+			try {
+				destroy_forcibly.invoke(handle);
+			} catch (Exception e) {
+				// The other descendants are still killed
+			}
+		}
+		return true;
+	}
+
+	private static Method lookUp(String class_name, String method_name) {
+		try {
+			return Class.forName(class_name).getMethod(method_name);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Flag to indicate if the process exceeds its time out limit
 	 */
-	private boolean is_timeout;
+	private volatile boolean is_timeout;
+
+	/**
+	 * Whether the descendants of the process are killed as well
+	 */
+	private final boolean kill_tree;
 
 	/**
 	 * Current executing process
 	 */
 	private Process process;
 
+	/**
+	 * Handle of the task on the timer
+	 */
+	private volatile HashedWheelTimer.Timeout timeout;
+
 	public ProcessKiller(Process process) {
+		this(process, false);
+	}
+
+	/**
+	 * Construct a killer
+	 * 
+	 * @param process
+	 * @param kill_tree
+	 *            {@literal true} to kill the descendants of the process as well, see {@link #destroyTree(Process)}
+	 */
+	public ProcessKiller(Process process, boolean kill_tree) {
 		assert process != null;
 		this.process = process;
+		this.kill_tree = kill_tree;
 		this.is_timeout = false;
 	}
 
+	@Override
+	public boolean cancel() {
+		boolean cancelled = super.cancel();
+		HashedWheelTimer.Timeout timeout = this.timeout;
+		return timeout == null ? cancelled : timeout.cancel();
+	}
+
 	public boolean isTimeOut() {
 		return is_timeout;
 	}
@@ -40,11 +124,25 @@ class ProcessKiller extends TimerTask {
 			// Set time out flag
 			is_timeout = true;
 			// Destroy the running process; assuming that once the process is destroyed, its standard output reaches EOF
-			process.destroy();
+			if (kill_tree)
+				destroyTree(process);
+			else
+				process.destroy();
 			// Note: must not close streams here (after destruction) because we might still be processing the standard
 			// output; invoking destroy is sufficient because this makes the stdout stream reach EOF so that invocation
 			// of Streams.processStream in TimeShell.fork halts naturally.
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Schedule the killing after a delay; {@link #cancel()} cancels it
+	 * 
+	 * @param timer
+	 * @param delay
+	 *            Delay in milliseconds
+	 */
+	public void schedule(HashedWheelTimer timer, long delay) {
+		timeout = timer.schedule(this, delay);
+	}
+
+}
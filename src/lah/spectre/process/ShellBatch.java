@@ -0,0 +1,285 @@
+package lah.spectre.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import lah.spectre.interfaces.IResultListener;
+import lah.spectre.stream.TailAccumulator;
+
+/**
+ * Run a batch of independent commands with a limited number of them at once, reporting the results as the commands
+ * complete. The commands are forked with {@link TimedShell#forkAsync}, so only the calling thread waits: there is no
+ * thread per command for its output or its time out.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class ShellBatch {
+
+	/**
+	 * What to do when a command fails
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static enum Policy {
+		/**
+		 * Run all commands regardless of failures
+		 */
+		COLLECT_ALL,
+		/**
+		 * Stop at the first failure: the commands still running are cancelled and the others are not started
+		 */
+		FAIL_FAST;
+	}
+
+	/**
+	 * Outcome of a command of the batch
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static class Result {
+
+		private final String[] command;
+
+		private Exception exception;
+
+		private Integer exit_value;
+
+		private ProcessFuture future;
+
+		private final int index;
+
+		private final TailAccumulator output;
+
+		Result(int index, String[] command, TailAccumulator output) {
+			this.index = index;
+			this.command = command;
+			this.output = output;
+		}
+
+		public String[] getCommand() {
+			return command;
+		}
+
+		/**
+		 * Get the exception the command failed with: {@link IOException} if it cannot be started,
+		 * {@link java.util.concurrent.TimeoutException} if it timed out or {@link CancellationException} if it was
+		 * cancelled by the policy or the deadline of the batch
+		 * 
+		 * @return The exception or {@literal null} if the command exited
+		 */
+		public Exception getException() {
+			return exception;
+		}
+
+		/**
+		 * Get the exit value of the command
+		 * 
+		 * @return The exit value or {@literal null} if the command failed with an exception
+		 */
+		public Integer getExitValue() {
+			return exit_value;
+		}
+
+		/**
+		 * Get the position of the command in the batch
+		 * 
+		 * @return
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Get the end of the output (standard output and error) of the command
+		 * 
+		 * @return The output or {@literal null} if the output is not captured (see
+		 *         {@link ShellBatch#setOutputCapacity(int)})
+		 */
+		public String getOutput() {
+			return output == null ? null : output.getResult();
+		}
+
+		/**
+		 * Check if the command exited with value 0
+		 * 
+		 * @return
+		 */
+		public boolean isSuccess() {
+			return exit_value != null && exit_value == 0;
+		}
+
+	}
+
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+
+	private long deadline;
+
+	private File directory;
+
+	private int output_capacity;
+
+	private Policy policy = Policy.COLLECT_ALL;
+
+	private final TimedShell shell;
+
+	private long timeout;
+
+	/**
+	 * Construct a batch forking the commands with a shell, with its exported environment
+	 * 
+	 * @param shell
+	 */
+	public ShellBatch(TimedShell shell) {
+		this.shell = shell;
+	}
+
+	private void cancel(Set<ProcessFuture> futures) {
+		for (ProcessFuture future : futures)
+			future.cancel(true);
+	}
+
+	/**
+	 * Run the commands, blocking until all of them are done or the batch is stopped
+	 * 
+	 * @param commands
+	 *            The (tokenized) commands
+	 * @param listener
+	 *            Listener notified on the calling thread of each result as soon as its command is done, can be
+	 *            {@literal null}
+	 * @return The results in completion order; if the batch is stopped (by {@link Policy#FAIL_FAST} or by the
+	 *         deadline), the commands never started have no result
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted, in which case the commands still running are cancelled
+	 */
+	public List<Result> run(List<String[]> commands, IResultListener<Result> listener) throws InterruptedException {
+		final BlockingQueue<Result> completed = new LinkedBlockingQueue<Result>();
+		Set<ProcessFuture> running = new HashSet<ProcessFuture>();
+		List<Result> results = new ArrayList<Result>(commands.size());
+		long end = deadline > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline) : 0;
+		int next = 0, pending = 0;
+		boolean stopped = false;
+		try {
+			while (pending > 0 || (!stopped && next < commands.size())) {
+				while (!stopped && pending < concurrency && next < commands.size()) {
+					start(next, commands.get(next), completed, running);
+					next++;
+					pending++;
+				}
+				Result result;
+				if (end == 0 || stopped) {
+					result = completed.take();
+				} else {
+					result = completed.poll(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (result == null) {
+						// Deadline of the batch: the running commands are reported as cancelled
+						stopped = true;
+						cancel(running);
+						continue;
+					}
+				}
+				pending--;
+				running.remove(result.future);
+				results.add(result);
+				if (!stopped && policy == Policy.FAIL_FAST && !result.isSuccess()) {
+					stopped = true;
+					cancel(running);
+				}
+				if (listener != null)
+					listener.onResultObtained(result);
+			}
+		} finally {
+			cancel(running);
+		}
+		return results;
+	}
+
+	/**
+	 * Set the maximum number of commands running at once, the number of processors by default
+	 * 
+	 * @param concurrency
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency <= 0)
+			throw new IllegalArgumentException("Concurrency must be positive!");
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Set the maximum time for the whole batch, after which the running commands are cancelled and the others are
+	 * not started
+	 * 
+	 * @param deadline
+	 *            Time in milliseconds from the start of {@link #run}, no deadline if not greater than 0
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Set the working directory of the commands
+	 * 
+	 * @param directory
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Set the number of bytes kept from the end of the output of each command
+	 * 
+	 * @param output_capacity
+	 *            Number of bytes, 0 (the default) to discard the output
+	 */
+	public void setOutputCapacity(int output_capacity) {
+		this.output_capacity = output_capacity;
+	}
+
+	public void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Set the time out of each command
+	 * 
+	 * @param timeout
+	 *            Time out in milliseconds, no time out if not greater than 0
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	private void start(int index, String[] command, final BlockingQueue<Result> completed, Set<ProcessFuture> running) {
+		final Result result = new Result(index, command, output_capacity > 0 ? new TailAccumulator(output_capacity)
+				: null);
+		try {
+			result.future = shell.forkAsync(command, directory, result.output, timeout);
+		} catch (IOException e) {
+			result.exception = e;
+			completed.add(result);
+			return;
+		}
+		running.add(result.future);
+		result.future.addListener(new IResultListener<ProcessFuture>() {
+
+			@Override
+			public void onResultObtained(ProcessFuture future) {
+				result.exit_value = future.getExitValue();
+				result.exception = future.getException();
+				completed.add(result);
+			}
+
+		});
+	}
+
+}
@@ -0,0 +1,347 @@
+package lah.spectre.process;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+
+import lah.spectre.multitask.HashedWheelTimer;
+import lah.spectre.stream.BufferPool;
+import lah.spectre.stream.IBufferProcessor;
+import lah.spectre.stream.IBufferProducer;
+import lah.spectre.stream.Streams;
+
+/**
+ * Long-lived shell process executing commands one after another, to save the cost of forking a new process for each
+ * of many short commands. The output of each command is delimited by a unique sentinel line carrying its exit code,
+ * which is stripped from the output passed to the processor.
+ * 
+ * Commands run with their standard input from {@code /dev/null} and their standard error merged into the standard
+ * output, as in {@link TimedShell#fork(String[], File, String[], IBufferProcessor, IBufferProducer, long)}. They run
+ * in the session shell itself, so changes of directory or variables persist to the next commands. A command timing out
+ * or failing in its processor kills the shell, along with the processes the command started (on Java 9 and later,
+ * see {@link ProcessKiller}); so does a command exiting the shell. The shell is restarted for the next command.
+ * 
+ * A session is not meant to be used by several threads at once; {@link #execute} calls are serialized.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class ShellSession implements Closeable {
+
+	/**
+	 * Buffer collecting the output of a command to pass it to the processor in chunks
+	 */
+	private static class OutputBuffer {
+
+		private final byte[] buffer = BufferPool.getDefault().acquire();
+
+		private int length;
+
+		private final IBufferProcessor processor;
+
+		OutputBuffer(IBufferProcessor processor) {
+			this.processor = processor;
+		}
+
+		void flush() throws Exception {
+			if (length > 0 && processor != null)
+				processor.processBuffer(buffer, length);
+			length = 0;
+		}
+
+		void release() {
+			BufferPool.getDefault().release(buffer);
+		}
+
+		void write(byte b) throws Exception {
+			if (length == buffer.length)
+				flush();
+			buffer[length++] = b;
+		}
+
+	}
+
+	/**
+	 * Quote a string for the shell
+	 * 
+	 * @param argument
+	 * @return
+	 */
+	public static String quote(String argument) {
+		return "'" + argument.replace("'", "'\\''") + "'";
+	}
+
+	private boolean closed;
+
+	private int command_count;
+
+	private final File directory;
+
+	private final Map<String, String> environment;
+
+	/**
+	 * Exit value of the shell when a command exits it
+	 */
+	private int last_exit_value;
+
+	private int restart_count;
+
+	/**
+	 * The shell process, {@literal null} if it needs to be (re)started
+	 */
+	private Process shell;
+
+	private final String[] shell_command;
+
+	private InputStream shell_stdout;
+
+	private OutputStream shell_stdin;
+
+	/**
+	 * Token unique to this session, combined with the command count to build the sentinels
+	 */
+	private final String token = UUID.randomUUID().toString().replace("-", "");
+
+	/**
+	 * Construct a session running {@code sh}
+	 * 
+	 * @param directory
+	 *            Initial working directory, {@literal null} for the current directory
+	 * @param environment
+	 *            Additional environment variables, can be {@literal null}
+	 */
+	public ShellSession(File directory, Map<String, String> environment) {
+		this(new String[] { "sh" }, directory, environment);
+	}
+
+	/**
+	 * Construct a session
+	 * 
+	 * @param shell_command
+	 *            Command to start a POSIX shell reading commands from its standard input
+	 * @param directory
+	 *            Initial working directory, {@literal null} for the current directory
+	 * @param environment
+	 *            Additional environment variables, can be {@literal null}
+	 */
+	public ShellSession(String[] shell_command, File directory, Map<String, String> environment) {
+		this.shell_command = shell_command;
+		this.directory = directory;
+		this.environment = (environment == null ? new HashMap<String, String>() : new HashMap<String, String>(
+				environment));
+	}
+
+	/**
+	 * Terminate the shell
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		stop();
+	}
+
+	/**
+	 * Execute a tokenized command, quoting its arguments
+	 * 
+	 * @param command
+	 *            The command and its arguments
+	 * @param directory
+	 *            Working directory of the command, {@literal null} for the current directory of the session
+	 * @param stdout_processor
+	 *            Object to process the output, can be {@literal null}
+	 * @param timeout
+	 *            Maximum time in milliseconds for the command to execute if greater than 0
+	 * @return The exit value of the command
+	 * @throws Exception
+	 *             see {@link #execute(String, IBufferProcessor, long)}
+	 */
+	public int execute(String[] command, File directory, IBufferProcessor stdout_processor, long timeout)
+			throws Exception {
+		StringBuilder script = new StringBuilder();
+		if (directory != null)
+			script.append("cd ").append(quote(directory.getAbsolutePath())).append(" && ");
+		for (int i = 0; i < command.length; i++) {
+			if (i > 0)
+				script.append(' ');
+			script.append(quote(command[i]));
+		}
+		if (directory != null)
+			// Run in a subshell so that the directory of the session is left unchanged
+			return execute("(" + script + ")", stdout_processor, timeout);
+		return execute(script.toString(), stdout_processor, timeout);
+	}
+
+	/**
+	 * Execute a shell command line in the session
+	 * 
+	 * @param command_line
+	 *            The command line, interpreted by the shell
+	 * @param stdout_processor
+	 *            Object to process the output, can be {@literal null}
+	 * @param timeout
+	 *            Maximum time in milliseconds for the command to execute if greater than 0
+	 * @return The exit value of the command, or of the shell if the command exits it
+	 * @throws Exception
+	 *             {@link TimeoutException} if the timeout is reached; any exception raised by the processor; or
+	 *             {@link IOException} if the shell cannot be started
+	 */
+	public synchronized int execute(String command_line, IBufferProcessor stdout_processor, long timeout)
+			throws Exception {
+		if (closed)
+			throw new IOException("Shell session is closed");
+		if (shell == null)
+			start();
+		String sentinel = token + "_" + (++command_count);
+		String script = "{ " + command_line + "\n} </dev/null 2>&1; printf '\\n%s %d\\n' " + sentinel + " $?\n";
+		ProcessKiller process_killer = null;
+		if (timeout > 0) {
+			final InputStream stdout = shell_stdout;
+			process_killer = new ProcessKiller(shell, true) {
+
+				@Override
+				public void run() {
+					super.run();
+					// A background job out of reach may still hold the output open: stop reading it at once
+					if (isTimeOut())
+						Streams.closeStream(stdout);
+				}
+
+			};
+			process_killer.schedule(HashedWheelTimer.getDefault(), timeout);
+		}
+		boolean completed = false;
+		try {
+			shell_stdin.write(script.getBytes());
+			shell_stdin.flush();
+			int exit_value = readOutput(("\n" + sentinel + " ").getBytes(), stdout_processor);
+			// The shell may report the killed command before it dies itself
+			if (process_killer != null && process_killer.isTimeOut())
+				throw new TimeoutException("Timeout while executing " + command_line);
+			if (exit_value >= 0) {
+				completed = true;
+				return exit_value;
+			}
+			// The command exited the shell
+			last_exit_value = shell.waitFor();
+		} catch (IOException e) {
+			// The shell died before reading the command or while it was running
+			if (process_killer == null || !process_killer.isTimeOut())
+				throw e;
+		} finally {
+			if (process_killer != null)
+				process_killer.cancel();
+			if (!completed)
+				stop();
+		}
+		// The output ended without a sentinel: the shell is gone
+		if (process_killer != null && process_killer.isTimeOut())
+			throw new TimeoutException("Timeout while executing " + command_line);
+		return last_exit_value;
+	}
+
+	public int getCommandCount() {
+		return command_count;
+	}
+
+	/**
+	 * Get the number of times the shell was started again after it was killed or exited
+	 * 
+	 * @return
+	 */
+	public int getRestartCount() {
+		return restart_count;
+	}
+
+	/**
+	 * Check if the shell is running, it is started by the next command otherwise
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isAlive() {
+		if (shell == null)
+			return false;
+		try {
+			shell.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Pass the output of a command to the processor until its sentinel
+	 * 
+	 * @return The exit value of the command, -1 if the output ends before the sentinel
+	 */
+	private int readOutput(byte[] sentinel, IBufferProcessor stdout_processor) throws Exception {
+		byte[] buffer = BufferPool.getDefault().acquire();
+		OutputBuffer output = new OutputBuffer(stdout_processor);
+		try {
+			// Number of bytes of the sentinel matched so far, or -1 once it is matched and the exit value is read
+			int matched = 0;
+			int exit_value = 0;
+			int count;
+			while ((count = shell_stdout.read(buffer)) != -1) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Command is interrupted.");
+				for (int i = 0; i < count; i++) {
+					byte b = buffer[i];
+					if (matched < 0) {
+						if (b == '\n') {
+							output.flush();
+							return exit_value;
+						}
+						exit_value = 10 * exit_value + (b - '0');
+					} else if (b == sentinel[matched]) {
+						if (++matched == sentinel.length)
+							matched = -1;
+					} else {
+						// Mismatch: the bytes held back are output; the sentinel only has a newline at its start
+						for (int j = 0; j < matched; j++)
+							output.write(sentinel[j]);
+						matched = (b == sentinel[0] ? 1 : 0);
+						if (matched == 0)
+							output.write(b);
+					}
+				}
+				output.flush();
+			}
+			// The bytes held back were output after all
+			for (int j = 0; j < matched; j++)
+				output.write(sentinel[j]);
+			output.flush();
+			return -1;
+		} finally {
+			BufferPool.getDefault().release(buffer);
+			output.release();
+		}
+	}
+
+	private void start() throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(shell_command).directory(directory).redirectErrorStream(true);
+		builder.environment().putAll(environment);
+		shell = builder.start();
+		shell_stdin = shell.getOutputStream();
+		shell_stdout = shell.getInputStream();
+		if (command_count > 0)
+			restart_count++;
+	}
+
+	private void stop() {
+		if (shell != null) {
+			// The command running in the shell, if any, would survive it
+			ProcessKiller.destroyTree(shell);
+			TimedShell.kill(shell);
+		}
+		shell = null;
+		shell_stdin = null;
+		shell_stdout = null;
+	}
+
+}
@@ -0,0 +1,114 @@
+package lah.spectre.process;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import lah.spectre.interfaces.IExceptionHandler;
+import lah.spectre.stream.IBufferProducer;
+import lah.spectre.stream.Streams;
+
+/**
+ * Task writing the bytes of an {@link IBufferProducer} to the standard input of a process and closing it at the end,
+ * so that the process sees the end of its input. It runs concurrently with the processing of the standard output:
+ * feeding a filter such as {@code sort} or {@code gzip} from the same thread that reads its output deadlocks as soon
+ * as both pipes are full. Writing blocks while the pipe is full, which slows the producer down to the pace of the
+ * process.
+ * 
+ * If the producer fails, the process is killed; if the process stops reading (exits or closes its input), the
+ * remaining input is silently dropped.
+ * 
+ * @author L.A.H.
+ * 
+ */
+class StdInFeeder implements Runnable {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final IExceptionHandler exception_handler;
+
+	private final Process process;
+
+	private final IBufferProducer producer;
+
+	/**
+	 * Exception raised by the producer, as opposed to a failure to write to the process
+	 */
+	private volatile Exception producer_exception;
+
+	StdInFeeder(Process process, IBufferProducer producer, IExceptionHandler exception_handler) {
+		this.process = process;
+		this.producer = producer;
+		this.exception_handler = exception_handler;
+	}
+
+	/**
+	 * Wait for the feeding to end, so that the failure of the producer, if any, is known
+	 * 
+	 * @param timeout
+	 *            Maximum waiting time in milliseconds, no limit if not greater than 0
+	 * @return {@literal true} if the feeding has ended
+	 * @throws InterruptedException
+	 */
+	boolean await(long timeout) throws InterruptedException {
+		if (timeout > 0)
+			return done.await(timeout, TimeUnit.MILLISECONDS);
+		done.await();
+		return true;
+	}
+
+	/**
+	 * Get the exception raised by the producer
+	 * 
+	 * @return The exception or {@literal null} if the producer has not failed
+	 */
+	Exception getException() {
+		return producer_exception;
+	}
+
+	@Override
+	public void run() {
+		try {
+			Streams.supplyStream(new IBufferProducer() {
+
+				@Override
+				public int fillBuffer(byte[] buffer) throws Exception {
+					try {
+						return producer.fillBuffer(buffer);
+					} catch (Exception e) {
+						producer_exception = e;
+						throw e;
+					}
+				}
+
+			}, process.getOutputStream());
+		} catch (Exception e) {
+			// Failure to write: the process does not read its input anymore
+		} finally {
+			Streams.closeStream(process.getOutputStream());
+		}
+		try {
+			if (producer_exception != null) {
+				process.destroy();
+				if (exception_handler != null)
+					exception_handler.onException(producer_exception);
+			}
+		} finally {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Start feeding on an executor, or on a new daemon thread if the executor is {@literal null}
+	 */
+	void start(Executor executor) {
+		if (executor != null) {
+			executor.execute(this);
+		} else {
+			Thread thread = new Thread(this, "StdInFeeder");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+}
@@ -2,13 +2,22 @@ package lah.spectre.process;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import lah.spectre.interfaces.IExceptionHandler;
 import lah.spectre.interfaces.IResultListener;
-import lah.spectre.stream.BufferProcessingThread;
+import lah.spectre.multitask.HashedWheelTimer;
+import lah.spectre.multitask.VirtualThreads;
+import lah.spectre.stream.BufferProcessingTask;
+import lah.spectre.stream.BufferSizePolicy;
 import lah.spectre.stream.IBufferProcessor;
+import lah.spectre.stream.IBufferProducer;
+import lah.spectre.stream.PatternMatcher;
+import lah.spectre.stream.StreamPump;
+import lah.spectre.stream.StreamRedirector;
+import lah.spectre.stream.StreamStatistics;
 
 /**
  * This class is an extension of the standard {@link Process} with the extra capability of being timed out. It also
@@ -19,29 +28,74 @@ import lah.spectre.stream.IBufferProcessor;
  */
 public class TimedProcess {
 
+	/**
+	 * Policy to size the buffers the standard output is read with
+	 */
+	protected BufferSizePolicy buffer_size_policy = BufferSizePolicy.DEFAULT;
+
 	/**
 	 * The command to execute
 	 */
 	protected String[] command;
 
+	/**
+	 * Executor to run the background tasks on instead of dedicated threads, {@literal null} for dedicated threads
+	 */
+	protected Executor executor;
+
 	/**
 	 * The external process forked for execution
 	 */
 	protected Process process;
 
 	/**
-	 * An executing task that will kill the process when time out is reached
+	 * An executing task that will kill the process when time out is reached, scheduled on the shared
+	 * {@link HashedWheelTimer}
 	 */
 	protected TimerTask process_killer;
 
 	/**
-	 * Background thread to process standard output generated by the process
+	 * Handle of the standard output on a {@link StreamPump} if the output is processed by a pump instead of a thread
+	 */
+	protected StreamPump.Drain stdout_drain;
+
+	/**
+	 * Task processing the standard output generated by the process, run by {@link #stdout_processing_thread} or by
+	 * {@link #stdout_task} on the executor
+	 */
+	protected BufferProcessingTask stdout_processing_task;
+
+	/**
+	 * Background thread to process standard output generated by the process, if there is no executor
 	 */
 	protected Thread stdout_processing_thread;
 
+	/**
+	 * Handler to notify if the redirector cannot move past the output of the process, see {@link #destroy()}
+	 */
+	protected IExceptionHandler stdout_redirect_exception_handler;
+
+	/**
+	 * Redirector whose file the process writes its standard output to directly, if any
+	 */
+	protected StreamRedirector stdout_redirector;
+
+	/**
+	 * Task processing the standard output on the executor, if any
+	 */
+	protected FutureTask<Void> stdout_task;
+
 	TimedProcess() {
 	}
 
+	/**
+	 * Wrap a process started by {@link TimedShell#forkProcess}
+	 */
+	TimedProcess(String[] command, Process process) {
+		this.command = command;
+		this.process = process;
+	}
+
 	public TimedProcess(String[] command, File working_directory, boolean redirect_stderr) throws IOException {
 		this.command = command;
 		process = new ProcessBuilder(command).directory(working_directory).redirectErrorStream(redirect_stderr).start();
@@ -61,6 +115,21 @@ public class TimedProcess {
 		setAndStartTimeOut(timeout);
 	}
 
+	/**
+	 * Wait for the standard output processing to finish, ignoring its failure
+	 */
+	private void awaitStdOut() {
+		try {
+			if (stdout_drain != null)
+				stdout_drain.await();
+			if (stdout_task != null)
+				stdout_task.get();
+			else if (stdout_processing_thread != null)
+				stdout_processing_thread.join();
+		} catch (Exception e) {
+		}
+	}
+
 	/**
 	 * Kill the process and wait for the standard output processing thread to finish with the remaining output
 	 */
@@ -68,11 +137,14 @@ public class TimedProcess {
 		// Kill the process and close resources
 		kill();
 		// Wait for the output processing thread to finish
+		awaitStdOut();
+		// The next buffers processed by the redirector follow the output of the process
 		try {
-			if (stdout_processing_thread == null)
-				return;
-			stdout_processing_thread.join();
-		} catch (Exception e) {
+			if (stdout_redirector != null)
+				stdout_redirector.moveToEnd();
+		} catch (IOException e) {
+			if (stdout_redirect_exception_handler != null)
+				stdout_redirect_exception_handler.onException(e);
 		}
 	}
 
@@ -84,6 +156,27 @@ public class TimedProcess {
 		return process_killer;
 	}
 
+	/**
+	 * Get the statistics of the standard output processed by a background thread, task or pump, to tell whether the
+	 * process is slow to write its output or the processor is slow to consume it
+	 * 
+	 * @return The statistics or {@literal null} if the standard output is not processed in the background
+	 */
+	public StreamStatistics getStdOutStatistics() {
+		if (stdout_drain != null)
+			return stdout_drain.getStatistics();
+		return stdout_processing_task == null ? null : stdout_processing_task.getStatistics();
+	}
+
+	/**
+	 * Check if the process was killed by the time out
+	 * 
+	 * @return
+	 */
+	public boolean isTimeOut() {
+		return process_killer instanceof ProcessKiller && ((ProcessKiller) process_killer).isTimeOut();
+	}
+
 	/**
 	 * Destroy the running process and close all associated resources (input/output streams)
 	 */
@@ -112,38 +205,172 @@ public class TimedProcess {
 		}
 	}
 
+	/**
+	 * Wrap an exception handler for the standard output processing so that the process is killed first
+	 */
+	private IExceptionHandler killOnException(final IExceptionHandler exception_handler) {
+		return new IExceptionHandler() {
+
+			@Override
+			public void onException(Exception e) {
+				kill();
+				if (exception_handler != null)
+					exception_handler.onException(e);
+			}
+
+		};
+	}
+
+	/**
+	 * Kill the process after a time out; only the process is killed, on the timer thread, and its resources are
+	 * released as usual by {@link #destroy()} or {@link #waitForAndDestroy()}
+	 * 
+	 * @param timeout
+	 *            Time out in milliseconds, no time out if not greater than 0
+	 */
 	public void setAndStartTimeOut(long timeout) {
-		if (timeout > 0) {
-			process_killer = new TimerTask() {
-
-				@Override
-				public void run() {
-					destroy();
-				}
-			};
-			new Timer().schedule(process_killer, timeout);
+		if (timeout > 0 && process != null) {
+			ProcessKiller killer = new ProcessKiller(process);
+			process_killer = killer;
+			killer.schedule(HashedWheelTimer.getDefault(), timeout);
 		}
 	}
 
+	/**
+	 * Set the policy to size the buffers the standard output is read with by the handler set afterward with
+	 * {@link #setStdOutHandler(IBufferProcessor, IExceptionHandler, IResultListener)}
+	 * 
+	 * @param buffer_size_policy
+	 */
+	public void setBufferSizePolicy(BufferSizePolicy buffer_size_policy) {
+		this.buffer_size_policy = buffer_size_policy;
+	}
+
+	/**
+	 * Set the executor to run the background tasks (such as processing the standard output with
+	 * {@link #setStdOutHandler(IBufferProcessor, IExceptionHandler, IResultListener)}) set afterward, for instance
+	 * virtual threads from {@link VirtualThreads#newPerTaskExecutor(String)}; each task occupies its thread while the
+	 * process runs
+	 * 
+	 * @param executor
+	 *            The executor or {@literal null} to start a dedicated thread per task (the default)
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Feed the standard input from a producer in the background, see
+	 * {@link #setStdInProducer(IBufferProducer, IExceptionHandler)}
+	 * 
+	 * @param producer
+	 */
+	public void setStdInProducer(IBufferProducer producer) {
+		setStdInProducer(producer, null);
+	}
+
+	/**
+	 * Feed the standard input from a producer in a background thread (or on the executor, see
+	 * {@link #setExecutor(Executor)}) while the standard output is processed; the standard input is closed when the
+	 * producer reaches its end, and the process is killed if the producer fails
+	 * 
+	 * @param producer
+	 *            Producer of the standard input
+	 * @param exception_handler
+	 *            Handler to notify if the producer fails, can be {@literal null}
+	 */
+	public void setStdInProducer(IBufferProducer producer, IExceptionHandler exception_handler) {
+		if (process != null)
+			new StdInFeeder(process, producer, exception_handler).start(executor);
+	}
+
 	public void setStdOutHandler(IBufferProcessor processor) {
 		setStdOutHandler(processor, null, null);
 	}
 
+	/**
+	 * Process the standard output in a background thread; if the processor fails (for instance, a
+	 * {@link PatternMatcher} aborting on a match), the process is killed as it can no longer write its output
+	 * 
+	 * @param processor
+	 *            Processor for the standard output
+	 * @param exception_handler
+	 *            Handler to notify if the processing fails, can be {@literal null}
+	 * @param result_listener
+	 *            Listener to notify once the output is fully processed, can be {@literal null}
+	 */
 	public void setStdOutHandler(IBufferProcessor processor, IExceptionHandler exception_handler,
 			IResultListener<Void> result_listener) {
 		if (process != null) {
-			stdout_processing_thread = new BufferProcessingThread(process.getInputStream(), processor,
-					exception_handler, result_listener);
-			stdout_processing_thread.start();
+			stdout_processing_task = new BufferProcessingTask(process.getInputStream(), processor,
+					killOnException(exception_handler), result_listener,
+					buffer_size_policy.forStreamType(BufferSizePolicy.StreamType.PIPE),
+					command == null ? null : command[0]);
+			if (executor == null) {
+				stdout_processing_thread = new Thread(stdout_processing_task, "StdOutProcessor");
+				stdout_processing_thread.start();
+			} else {
+				stdout_task = new FutureTask<Void>(stdout_processing_task, null);
+				executor.execute(stdout_task);
+			}
+		}
+	}
+
+	/**
+	 * Process the standard output on a shared {@link StreamPump} instead of a dedicated thread
+	 * 
+	 * @param processor
+	 *            Processor for the standard output
+	 * @param exception_handler
+	 *            Handler to notify if the processing fails, can be {@literal null}
+	 * @param result_listener
+	 *            Listener to notify once the output is fully processed, can be {@literal null}
+	 * @param pump
+	 *            The pump to drain the standard output, for example {@link StreamPump#getDefault()}
+	 */
+	public void setStdOutHandler(IBufferProcessor processor, IExceptionHandler exception_handler,
+			IResultListener<Void> result_listener, StreamPump pump) {
+		if (process != null)
+			stdout_drain = pump.submit(process.getInputStream(), processor, process,
+					killOnException(exception_handler), result_listener);
+	}
+
+	/**
+	 * Process the standard output and feed the standard input of a process started by {@link TimedShell#forkProcess},
+	 * with the executor and the buffer size policy set beforehand, and start the time out
+	 * 
+	 * @param stdout_redirected
+	 *            Whether the process writes its output to the file of the processor, a {@link StreamRedirector}
+	 * @param stdin_producer
+	 *            Producer of the standard input, {@literal null} if there is none or the process reads its file
+	 */
+	void start(IBufferProcessor processor, boolean stdout_redirected, IBufferProducer stdin_producer,
+			IExceptionHandler exception_handler, long timeout) {
+		if (stdout_redirected) {
+			stdout_redirector = (StreamRedirector) processor;
+			stdout_redirect_exception_handler = exception_handler;
+		} else {
+			setStdOutHandler(processor, exception_handler, null);
 		}
+		if (stdin_producer != null)
+			setStdInProducer(stdin_producer, exception_handler);
+		setAndStartTimeOut(timeout);
 	}
 
 	public int waitFor() throws InterruptedException {
 		return process.waitFor();
 	}
 
+	/**
+	 * Wait for the process to exit and for its standard output to be fully processed, then release the resources
+	 * 
+	 * @return The exit value of the process
+	 * @throws InterruptedException
+	 */
 	public int waitForAndDestroy() throws InterruptedException {
 		int result = process.waitFor();
+		// The output ends with the process; closing it first would drop what is not processed yet
+		awaitStdOut();
 		destroy();
 		return result;
 	}
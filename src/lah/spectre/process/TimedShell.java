@@ -2,15 +2,25 @@ package lah.spectre.process;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Timer;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
 
 import lah.spectre.BuildConfig;
 import lah.spectre.Collections;
+import lah.spectre.interfaces.IExceptionHandler;
+import lah.spectre.multitask.HashedWheelTimer;
+import lah.spectre.multitask.VirtualThreads;
+import lah.spectre.stream.BufferSizePolicy;
+import lah.spectre.stream.FileProducer;
 import lah.spectre.stream.IBufferProcessor;
+import lah.spectre.stream.IBufferProducer;
+import lah.spectre.stream.PatternMatcher;
+import lah.spectre.stream.StreamPump;
+import lah.spectre.stream.StreamRedirector;
 import lah.spectre.stream.Streams;
 
 /**
@@ -21,6 +31,35 @@ import lah.spectre.stream.Streams;
  */
 public class TimedShell {
 
+	/**
+	 * Maximum time (in milliseconds) given to the standard input producer to end once the process has exited, so that
+	 * its failure is reported; a producer blocked for longer (for instance, reading a socket) is abandoned
+	 */
+	private static final long STDIN_GRACE_PERIOD = 1000;
+
+	/**
+	 * Get the file a producer reads, for the process to read it directly
+	 * 
+	 * @return The file or {@literal null} if the producer is not exactly a {@link FileProducer}
+	 */
+	static File getRedirectFile(IBufferProducer stdin_producer) {
+		if (stdin_producer == null || stdin_producer.getClass() != FileProducer.class)
+			return null;
+		return ((FileProducer) stdin_producer).getFile();
+	}
+
+	/**
+	 * Get the file a processor writes to, for the process to write to it directly
+	 * 
+	 * @return The file or {@literal null} if the processor is not exactly a {@link StreamRedirector} (a subclass may
+	 *         do more than writing) or does not write to a file
+	 */
+	static File getRedirectFile(IBufferProcessor stdout_processor) {
+		if (stdout_processor == null || stdout_processor.getClass() != StreamRedirector.class)
+			return null;
+		return ((StreamRedirector) stdout_processor).getFile();
+	}
+
 	/**
 	 * Destroy the process, wait for it to be completely destroyed and close all resources (stdin, stdout, stderr
 	 * streams).
@@ -46,14 +85,19 @@ public class TimedShell {
 	}
 
 	/**
-	 * Map to store exported environment
+	 * Policy to size the buffers the standard output of the processes from {@link #forkProcess} is read with
 	 */
-	private Map<String, String> global_environment = new HashMap<String, String>();
+	private BufferSizePolicy buffer_size_policy = BufferSizePolicy.DEFAULT;
 
 	/**
-	 * Global timer to timeout the external process
+	 * Executor to process the output of the asynchronous forks, {@literal null} for the shared pump
 	 */
-	private final Timer process_timer = new Timer();
+	private Executor executor;
+
+	/**
+	 * Map to store exported environment
+	 */
+	private Map<String, String> global_environment = new HashMap<String, String>();
 
 	/**
 	 * Set the value of a environment variable for ALL subsequent fork
@@ -104,72 +148,57 @@ public class TimedShell {
 	 *            {@code null}
 	 * @param stdout_processor
 	 *            Object to process the standard output, if this input is {@literal null}, the output is simply ignored
-	 *            (the effect is similar to sending to /dev/null)
+	 *            (the effect is similar to sending to /dev/null). The process is killed as soon as this processor
+	 *            raises an exception, which can be used to terminate it early (see {@link PatternMatcher}).
 	 * @param stdin_producer
-	 *            Object to interact with the external process
+	 *            Object to produce the standard input, written on another thread (or on the executor set with
+	 *            {@link #setExecutor(Executor)}) while the standard output is processed; the standard input is closed
+	 *            when the producer reaches its end. If this input is {@literal null}, the standard input is closed at
+	 *            once. The process is killed as soon as this producer raises an exception.
 	 * @param timeout
 	 *            Maximum allowable time for the process to execute if greater than 0; input 0 means no timing or
-	 *            unlimited allowance
+	 *            unlimited allowance. This method returns once the process exits, so that without time out, a process
+	 *            which closes its standard output but keeps running (a daemon, for instance) blocks it indefinitely;
+	 *            the standard input producer, if still running, is then given a short grace period to end.
 	 * @return The exit value of the executed command
 	 * @throws Exception
 	 *             {@link TimeoutException} if the timeout is reached and the process has not finished; or any exception
-	 *             raised by <b>stdout_processor</b> while processing the standard output.
+	 *             raised by <b>stdout_processor</b> while processing the standard output or by <b>stdin_producer</b>.
 	 *             {@link ArrayIndexOutOfBoundsException} if the environment array is of odd length.
 	 */
 	public int fork(String[] command, File directory, String[] extra_environment, IBufferProcessor stdout_processor,
-			IBufferProcessor stdin_producer, long timeout) throws Exception {
-		// 1. Create the process
-		Process process;
-		try {
-			ProcessBuilder proc_builder = new ProcessBuilder(command).directory(directory).redirectErrorStream(true);
-			// Set up the environment for the process
-			Map<String, String> env = proc_builder.environment();
-			// Set the global (exported) variables
-			for (Entry<String, String> e : global_environment.entrySet())
-				env.put(e.getKey(), e.getValue());
-			// Set the extra variables
-			if (extra_environment != null) {
-				for (int i = 0; i < extra_environment.length; i += 2)
-					env.put(extra_environment[i], extra_environment[i + 1]);
-			}
-			if (BuildConfig.DEBUG) {
-				System.out.println("TimedShell: execute " + Collections.stringOfArray(command, ",", "[", "]") + " @ "
-						+ directory.getAbsolutePath() + " with environment");
-				for (Entry<String, String> e : proc_builder.environment().entrySet()) {
-					System.out.println(e.getKey() + " = " + e.getValue());
-				}
-			}
-			// Start the new process
-			process = proc_builder.start();
-		} catch (UnsupportedOperationException exception) {
-			// Cannot build the environment, try an alternative using Runtime
-			String[] env = new String[global_environment.size()
-					+ (extra_environment == null ? 0 : extra_environment.length / 2)];
-			int i = 0;
-			for (Entry<String, String> e : global_environment.entrySet())
-				env[i++] = e.getKey() + "=" + e.getValue();
-			if (extra_environment != null) {
-				for (int j = 0; j < extra_environment.length; j += 2)
-					env[i++] = extra_environment[j] + "=" + extra_environment[j + 1];
-			}
-			process = Runtime.getRuntime().exec(command, env, directory);
-			// TODO redirect error stream!?
-		}
+			IBufferProducer stdin_producer, long timeout) throws Exception {
+		// 1. Create the process; if its output goes to a file or its input comes from a file, it writes or reads the
+		// file directly instead of copying through this process (not possible with Runtime)
+		ProcessBuilder proc_builder = newProcessBuilder(command, directory, extra_environment);
+		File stdout_file = proc_builder == null ? null : getRedirectFile(stdout_processor);
+		File stdin_file = proc_builder == null ? null : getRedirectFile(stdin_producer);
+		Process process = start(proc_builder, command, directory, extra_environment, stdout_file, stdin_file);
 
-		// 2. Schedule the timer to time-out the process (if necessary)
-		// Note that we have to recreate the TimerTask again and again since TimerTask can only be scheduled ONCE or
-		// repeated PERIODICALLY!
+		// 2. Schedule the timer to time-out the process (if necessary) on the shared timer
+		long deadline = System.currentTimeMillis() + timeout;
 		ProcessKiller process_killer = null;
 		if (timeout > 0) {
 			process_killer = new ProcessKiller(process);
-			process_timer.schedule(process_killer, timeout);
+			process_killer.schedule(HashedWheelTimer.getDefault(), timeout);
 		}
 
-		// 3. Process generated standard output
+		// 3. Feed the standard input concurrently and process generated standard output
+		StdInFeeder stdin_feeder = null;
+		if (stdin_producer != null && stdin_file == null) {
+			stdin_feeder = new StdInFeeder(process, stdin_producer, null);
+			stdin_feeder.start(executor);
+		} else {
+			Streams.closeStream(process.getOutputStream());
+		}
 		try {
 			// Note: the following call is blocking until (i) the process exits NATURALLY; (ii) the process is DESTROYED
 			// by the process_killer object; (iii) the stdout consuming (i.e. current) thread is interrupted.
-			Streams.processStream(stdout_processor, process.getInputStream());
+			if (stdout_file == null)
+				Streams.processStream(stdout_processor, process.getInputStream());
+			// The output ends as the process exits: let it exit rather than killing it, which could change its exit
+			// value; a process still running after closing its output is left to the time out
+			process.waitFor();
 		} finally {
 			// Cancel the scheduled killing if applicable
 			if (process_killer != null)
@@ -179,12 +208,27 @@ public class TimedShell {
 			kill(process);
 			// Note: this finally block is presumably always executed so that the process definitely exits and so we can
 			// safely invoke process.exitValue() on the process afterward
+
+			// The next buffers processed by the redirector follow the output of the process, even if waiting failed
+			if (stdout_file != null)
+				((StreamRedirector) stdout_processor).moveToEnd();
+		}
+
+		// The producer only notices the end of the process (its standard input is closed by now) on its next write:
+		// wait for it a little, within the time out, to know whether it failed
+		if (stdin_feeder != null) {
+			long grace = STDIN_GRACE_PERIOD;
+			if (timeout > 0)
+				grace = Math.min(grace, deadline - System.currentTimeMillis());
+			stdin_feeder.await(Math.max(1, grace));
 		}
 
 		// 4. Return exit value
 		if (process_killer != null && process_killer.isTimeOut())
 			// Time out occurs, raise exception
 			throw new TimeoutException("Timeout while executing " + command[0]);
+		else if (stdin_feeder != null && stdin_feeder.getException() != null)
+			throw stdin_feeder.getException();
 		else
 			return process.exitValue();
 	}
@@ -194,10 +238,211 @@ public class TimedShell {
 		return fork(command, directory, extra_environment, stdout_processor, null, timeout);
 	}
 
+	/**
+	 * Fork a process without waiting for it, see
+	 * {@link #forkAsync(String[], File, String[], IBufferProcessor, IBufferProducer, long)}
+	 */
+	public ProcessFuture forkAsync(String[] command, File directory, IBufferProcessor stdout_processor, long timeout)
+			throws IOException {
+		return forkAsync(command, directory, null, stdout_processor, null, timeout);
+	}
+
+	/**
+	 * Fork a process without blocking the calling thread; the standard output is processed on the shared
+	 * {@link StreamPump} (or on the executor set with {@link #setExecutor(Executor)}) and the time out runs on the
+	 * shared {@link HashedWheelTimer}, so that thousands of commands can run at once without a platform thread each
+	 * 
+	 * @param command
+	 *            The (tokenized) command to run
+	 * @param directory
+	 *            The working directory to run the command
+	 * @param extra_environment
+	 *            The additional environment, see {@link #fork(String[], File, String[], IBufferProcessor,
+	 *            IBufferProducer, long)}
+	 * @param stdout_processor
+	 *            Object to process the standard output on a pump thread, can be {@literal null}; the process is killed
+	 *            as soon as it raises an exception
+	 * @param stdin_producer
+	 *            Object to produce the standard input, can be {@literal null}, see
+	 *            {@link #fork(String[], File, String[], IBufferProcessor, IBufferProducer, long)}
+	 * @param timeout
+	 *            Maximum allowable time for the process to execute if greater than 0
+	 * @return The future exit value, completing exceptionally on time out, processor failure or cancellation
+	 * @throws IOException
+	 *             if the process cannot be started
+	 */
+	public ProcessFuture forkAsync(String[] command, File directory, String[] extra_environment,
+			IBufferProcessor stdout_processor, IBufferProducer stdin_producer, long timeout) throws IOException {
+		// Direct redirection to and from files, as in fork
+		ProcessBuilder proc_builder = newProcessBuilder(command, directory, extra_environment);
+		File stdout_file = proc_builder == null ? null : getRedirectFile(stdout_processor);
+		File stdin_file = proc_builder == null ? null : getRedirectFile(stdin_producer);
+		Process process = start(proc_builder, command, directory, extra_environment, stdout_file, stdin_file);
+		ProcessFuture future = new ProcessFuture(command, process, HashedWheelTimer.getDefault());
+		StdInFeeder stdin_feeder = null;
+		if (stdin_producer != null && stdin_file == null)
+			stdin_feeder = new StdInFeeder(process, stdin_producer, null);
+		else
+			Streams.closeStream(process.getOutputStream());
+		future.start(stdout_processor, stdout_file != null, stdin_feeder, timeout,
+				executor == null ? StreamPump.getDefault() : null, executor);
+		return future;
+	}
+
+	/**
+	 * Start a process with the exported environment and return it as a {@link TimedProcess}, its standard output
+	 * processed and its standard input produced in the background (on the executor set with
+	 * {@link #setExecutor(Executor)} if any, on dedicated threads otherwise); as with {@link #fork}, if the output goes
+	 * to a file through a {@link StreamRedirector} or the input comes from a {@link FileProducer}, the process writes
+	 * or reads the file directly and no thread copies the bytes, so that no {@link lah.spectre.stream.StreamStatistics}
+	 * are recorded for them
+	 * 
+	 * @param command
+	 *            The (tokenized) command to run
+	 * @param directory
+	 *            The working directory to run the command
+	 * @param extra_environment
+	 *            The additional environment, see {@link #fork(String[], File, String[], IBufferProcessor,
+	 *            IBufferProducer, long)}
+	 * @param stdout_processor
+	 *            Processor for the standard output, can be {@literal null}
+	 * @param stdin_producer
+	 *            Producer of the standard input, can be {@literal null}
+	 * @param exception_handler
+	 *            Handler to notify if the processing of the output, the production of the input or the move of the
+	 *            redirector past the output (see {@link TimedProcess#destroy()}) fails, can be {@literal null}
+	 * @param timeout
+	 *            Time out in milliseconds, no time out if not greater than 0
+	 * @return The process, to release with {@link TimedProcess#waitForAndDestroy()} or {@link TimedProcess#destroy()}
+	 * @throws IOException
+	 *             if the process cannot be started
+	 */
+	public TimedProcess forkProcess(String[] command, File directory, String[] extra_environment,
+			IBufferProcessor stdout_processor, IBufferProducer stdin_producer, IExceptionHandler exception_handler,
+			long timeout) throws IOException {
+		// Direct redirection to and from files, as in fork
+		ProcessBuilder proc_builder = newProcessBuilder(command, directory, extra_environment);
+		File stdout_file = proc_builder == null ? null : getRedirectFile(stdout_processor);
+		File stdin_file = proc_builder == null ? null : getRedirectFile(stdin_producer);
+		Process process = start(proc_builder, command, directory, extra_environment, stdout_file, stdin_file);
+		TimedProcess timed_process = new TimedProcess(command, process);
+		timed_process.setExecutor(executor);
+		timed_process.setBufferSizePolicy(buffer_size_policy);
+		timed_process.start(stdout_processor, stdout_file != null, stdin_file == null ? stdin_producer : null,
+				exception_handler, timeout);
+		return timed_process;
+	}
+
 	public String getEnv(String variable) {
 		if (variable == null)
 			return null;
 		return (global_environment.containsKey(variable)) ? global_environment.get(variable) : System.getenv(variable);
 	}
 
+	/**
+	 * Open a session running commands in a single long-lived shell, with the exported environment; this is much
+	 * faster than {@link #fork} for many short commands
+	 * 
+	 * @param directory
+	 *            Initial working directory of the session
+	 * @return The session, to close once done
+	 */
+	public ShellSession openSession(File directory) {
+		return new ShellSession(directory, global_environment);
+	}
+
+	/**
+	 * Set the policy to size the buffers the standard output of the processes started afterward with
+	 * {@link #forkProcess} is read with
+	 * 
+	 * @param buffer_size_policy
+	 */
+	public void setBufferSizePolicy(BufferSizePolicy buffer_size_policy) {
+		this.buffer_size_policy = buffer_size_policy;
+	}
+
+	/**
+	 * Set the executor to process the output of the processes forked with {@link #forkAsync} instead of the shared
+	 * {@link StreamPump}: each process then occupies a task blocking on its output and its exit, which suits virtual
+	 * threads (see {@link VirtualThreads#newPerTaskExecutor(String)}) better than the polling of the pump; the
+	 * processes started with {@link #forkProcess} run their background tasks on it instead of dedicated threads
+	 * 
+	 * @param executor
+	 *            The executor or {@literal null} for the shared pump (the default)
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Start a process with {@link Runtime#exec(String[], String[], File)}, when the environment cannot be set with a
+	 * {@link ProcessBuilder}
+	 */
+	private Process exec(String[] command, File directory, String[] extra_environment) throws IOException {
+		String[] env = new String[global_environment.size()
+				+ (extra_environment == null ? 0 : extra_environment.length / 2)];
+		int i = 0;
+		for (Entry<String, String> e : global_environment.entrySet())
+			env[i++] = e.getKey() + "=" + e.getValue();
+		if (extra_environment != null) {
+			for (int j = 0; j < extra_environment.length; j += 2)
+				env[i++] = extra_environment[j] + "=" + extra_environment[j + 1];
+		}
+		// TODO redirect error stream!?
+		return Runtime.getRuntime().exec(command, env, directory);
+	}
+
+	/**
+	 * Create a builder for a process with the exported and extra environment, merging its standard error into its
+	 * standard output
+	 * 
+	 * @return The builder or {@literal null} if the environment cannot be set with a {@link ProcessBuilder}
+	 */
+	private ProcessBuilder newProcessBuilder(String[] command, File directory, String[] extra_environment) {
+		try {
+			ProcessBuilder proc_builder = new ProcessBuilder(command).directory(directory).redirectErrorStream(true);
+			// Set up the environment for the process
+			Map<String, String> env = proc_builder.environment();
+			// Set the global (exported) variables
+			for (Entry<String, String> e : global_environment.entrySet())
+				env.put(e.getKey(), e.getValue());
+			// Set the extra variables
+			if (extra_environment != null) {
+				for (int i = 0; i < extra_environment.length; i += 2)
+					env.put(extra_environment[i], extra_environment[i + 1]);
+			}
+			if (BuildConfig.DEBUG) {
+				System.out.println("TimedShell: execute " + Collections.stringOfArray(command, ",", "[", "]") + " @ "
+						+ directory.getAbsolutePath() + " with environment");
+				for (Entry<String, String> e : proc_builder.environment().entrySet()) {
+					System.out.println(e.getKey() + " = " + e.getValue());
+				}
+			}
+			return proc_builder;
+		} catch (UnsupportedOperationException exception) {
+			return null;
+		}
+	}
+
+	/**
+	 * Start a process, with its output appended to a file and its input read from a file if they are not
+	 * {@literal null}
+	 * 
+	 * @param proc_builder
+	 *            Builder from {@link #newProcessBuilder}; if {@literal null}, the process is started by
+	 *            {@link #exec} and the files must be {@literal null}
+	 */
+	private Process start(ProcessBuilder proc_builder, String[] command, File directory, String[] extra_environment,
+			File stdout_file, File stdin_file) throws IOException {
+		// Cannot build the environment, try an alternative using Runtime
+		if (proc_builder == null)
+			return exec(command, directory, extra_environment);
+		if (stdout_file != null)
+			proc_builder.redirectOutput(Redirect.appendTo(stdout_file));
+		if (stdin_file != null)
+			proc_builder.redirectInput(Redirect.from(stdin_file));
+		// Start the new process
+		return proc_builder.start();
+	}
+
 }
@@ -0,0 +1,277 @@
+package lah.spectre.stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implementation of {@link IBufferProcessor} that decouples a (slow) downstream processor from the thread reading the
+ * stream. The chunks are copied into a {@link BufferRing} and processed by the downstream processor on a separate
+ * consumer thread, so a slow processor no longer stalls the pipe of an external process. What happens when the ring
+ * is full is decided by the {@link Backpressure} policy.
+ * 
+ * The first exception raised by the downstream processor is rethrown to the producer on its next chunk (which, for the
+ * standard output of a {@code TimedShell.fork}, kills the process). {@link #close()} must be invoked once the stream
+ * ends to wait for the remaining chunks to be processed.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class AsyncBufferProcessor implements IBufferProcessor, Closeable {
+
+	/**
+	 * Policy when the downstream processor cannot keep up
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static enum Backpressure {
+		/**
+		 * Wait for the downstream processor to free a slot, slowing down the producer
+		 */
+		BLOCK,
+		/**
+		 * Drop the chunk; the downstream processor misses part of the stream
+		 */
+		DROP,
+		/**
+		 * Append the chunk (and all subsequent chunks until the downstream processor catches up) to a temporary file
+		 */
+		SPILL;
+	}
+
+	private class Consumer implements Runnable {
+
+		@Override
+		public void run() {
+			IBufferProcessor processor = downstream;
+			byte[] spill_buffer = null;
+			try {
+				while (true) {
+					try {
+						if (ring.poll(processor))
+							continue;
+						if (spilling) {
+							if (spill_buffer == null)
+								spill_buffer = BufferPool.getDefault().acquire();
+							int count = readSpill(spill_buffer);
+							if (count > 0)
+								processor.processBuffer(spill_buffer, count);
+							continue;
+						}
+						if (closed && ring.isEmpty() && !spilling)
+							break;
+						ring.awaitData(Long.MAX_VALUE);
+					} catch (Exception e) {
+						// Keep draining (and discarding) so that a blocked producer can proceed and see the exception
+						if (exception == null)
+							exception = e;
+						processor = StreamRedirector.NULL;
+					}
+				}
+			} finally {
+				// The consumer thread is about to end, its per-thread cache would be lost
+				BufferPool.getDefault().releaseShared(spill_buffer);
+				synchronized (AsyncBufferProcessor.this) {
+					finished = true;
+					AsyncBufferProcessor.this.notifyAll();
+				}
+			}
+		}
+
+	}
+
+	private volatile boolean closed;
+
+	private final IBufferProcessor downstream;
+
+	private final AtomicLong dropped_count = new AtomicLong();
+
+	private volatile Exception exception;
+
+	private boolean finished;
+
+	private final Backpressure policy;
+
+	private final BufferRing ring;
+
+	private File spill_file;
+
+	/**
+	 * Lock guarding the spill file and its positions
+	 */
+	private final Object spill_lock = new Object();
+
+	private long spill_read_position, spill_write_position, spilled_count;
+
+	private RandomAccessFile spill_stream;
+
+	private volatile boolean spilling;
+
+	/**
+	 * Construct a processor whose consumer runs on a new daemon thread
+	 * 
+	 * @param downstream
+	 *            The processor to decouple
+	 * @param capacity
+	 *            Number of chunks that can be buffered
+	 * @param policy
+	 *            What to do when the buffered chunks reach the capacity
+	 */
+	public AsyncBufferProcessor(IBufferProcessor downstream, int capacity, Backpressure policy) {
+		this(downstream, capacity, policy, null);
+	}
+
+	/**
+	 * Construct a processor
+	 * 
+	 * @param downstream
+	 *            The processor to decouple
+	 * @param capacity
+	 *            Number of chunks that can be buffered
+	 * @param policy
+	 *            What to do when the buffered chunks reach the capacity
+	 * @param executor
+	 *            Executor to run the consumer, which occupies its thread until {@link #close()}; {@literal null} to
+	 *            start a new daemon thread
+	 */
+	public AsyncBufferProcessor(IBufferProcessor downstream, int capacity, Backpressure policy, Executor executor) {
+		this.downstream = downstream;
+		this.policy = policy;
+		this.ring = new BufferRing(capacity);
+		Consumer consumer = new Consumer();
+		if (executor == null) {
+			Thread thread = new Thread(consumer, "AsyncBufferProcessor");
+			thread.setDaemon(true);
+			thread.start();
+		} else
+			executor.execute(consumer);
+	}
+
+	/**
+	 * Wait for all buffered chunks to be processed and release the resources; the downstream processor itself is not
+	 * closed
+	 * 
+	 * @throws IOException
+	 *             if the downstream processor failed or the waiting is interrupted
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		ring.signal();
+		try {
+			synchronized (this) {
+				while (!finished)
+					wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the processing to finish", e);
+		} finally {
+			if (finished) {
+				ring.release();
+				synchronized (spill_lock) {
+					if (spill_stream != null)
+						spill_stream.close();
+					if (spill_file != null)
+						spill_file.delete();
+					spill_stream = null;
+					spill_file = null;
+				}
+			}
+		}
+		if (exception instanceof IOException)
+			throw (IOException) exception;
+		if (exception != null)
+			throw new IOException(exception);
+	}
+
+	/**
+	 * Get the number of bytes dropped under the {@link Backpressure#DROP} policy
+	 * 
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped_count.get();
+	}
+
+	/**
+	 * Get the exception raised by the downstream processor, if any
+	 * 
+	 * @return
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * Get the number of bytes that went through the spill file under the {@link Backpressure#SPILL} policy
+	 * 
+	 * @return
+	 */
+	public long getSpilledCount() {
+		synchronized (spill_lock) {
+			return spilled_count;
+		}
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) throws Exception {
+		if (exception != null)
+			throw exception;
+		if (closed)
+			throw new IOException("Processor is closed");
+		switch (policy) {
+		case BLOCK:
+			ring.put(buffer, count);
+			break;
+		case DROP:
+			if (!ring.offer(buffer, count))
+				dropped_count.addAndGet(count);
+			break;
+		case SPILL:
+			if (!spilling && ring.offer(buffer, count))
+				break;
+			synchronized (spill_lock) {
+				writeSpill(buffer, count);
+				spilling = true;
+			}
+			ring.signal();
+			break;
+		}
+	}
+
+	/**
+	 * Read the next spilled bytes; once the spill file is exhausted, it is truncated and the producer goes back to the
+	 * ring
+	 */
+	private int readSpill(byte[] buffer) throws IOException {
+		synchronized (spill_lock) {
+			int count = (int) Math.min(buffer.length, spill_write_position - spill_read_position);
+			spill_stream.seek(spill_read_position);
+			spill_stream.readFully(buffer, 0, count);
+			spill_read_position += count;
+			if (spill_read_position == spill_write_position) {
+				spill_stream.setLength(0);
+				spill_read_position = spill_write_position = 0;
+				spilling = false;
+			}
+			return count;
+		}
+	}
+
+	private void writeSpill(byte[] buffer, int count) throws IOException {
+		if (spill_stream == null) {
+			spill_file = File.createTempFile("spectre", ".spill");
+			spill_stream = new RandomAccessFile(spill_file, "rw");
+		}
+		spill_stream.seek(spill_write_position);
+		spill_stream.write(buffer, 0, count);
+		spill_write_position += count;
+		spilled_count += count;
+	}
+
+}
@@ -0,0 +1,129 @@
+package lah.spectre.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Adapters between the byte array interfaces ({@link IBufferProcessor}, {@link IBufferProducer}) and their
+ * {@link ByteBuffer} companions ({@link IByteBufferProcessor}, {@link IByteBufferProducer}). Heap buffers are passed
+ * through without copy whenever possible; otherwise the bytes are copied through a pooled array.
+ * 
+ * The adapters keep some state to avoid allocating on each buffer so each of them must only be used by one thread at
+ * a time.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class BufferAdapters {
+
+	/**
+	 * Adapt an {@link IByteBufferProcessor} to process byte arrays
+	 * 
+	 * @param processor
+	 * @return
+	 */
+	public static IBufferProcessor asBufferProcessor(final IByteBufferProcessor processor) {
+		return new IBufferProcessor() {
+
+			private byte[] array;
+
+			private ByteBuffer wrapper;
+
+			@Override
+			public void processBuffer(byte[] buffer, int count) throws Exception {
+				if (buffer != array) {
+					array = buffer;
+					wrapper = ByteBuffer.wrap(buffer);
+				}
+				wrapper.limit(count).position(0);
+				processor.processBuffer(wrapper);
+			}
+
+		};
+	}
+
+	/**
+	 * Adapt an {@link IByteBufferProducer} to fill byte arrays
+	 * 
+	 * @param producer
+	 * @return
+	 */
+	public static IBufferProducer asBufferProducer(final IByteBufferProducer producer) {
+		return new IBufferProducer() {
+
+			private byte[] array;
+
+			private ByteBuffer wrapper;
+
+			@Override
+			public int fillBuffer(byte[] buffer) throws Exception {
+				if (buffer != array) {
+					array = buffer;
+					wrapper = ByteBuffer.wrap(buffer);
+				}
+				wrapper.clear();
+				return producer.fillBuffer(wrapper);
+			}
+
+		};
+	}
+
+	/**
+	 * Adapt an {@link IBufferProcessor} to process {@link ByteBuffer}s; a heap buffer whose content starts at the
+	 * beginning of its backing array is passed as is, others are copied in chunks
+	 * 
+	 * @param processor
+	 * @return
+	 */
+	public static IByteBufferProcessor asByteBufferProcessor(final IBufferProcessor processor) {
+		return new IByteBufferProcessor() {
+
+			@Override
+			public void processBuffer(ByteBuffer buffer) throws Exception {
+				if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0) {
+					int count = buffer.remaining();
+					processor.processBuffer(buffer.array(), count);
+					buffer.position(buffer.limit());
+					return;
+				}
+				byte[] chunk = BufferPool.getDefault().acquire();
+				try {
+					while (buffer.hasRemaining()) {
+						int count = Math.min(chunk.length, buffer.remaining());
+						buffer.get(chunk, 0, count);
+						processor.processBuffer(chunk, count);
+					}
+				} finally {
+					BufferPool.getDefault().release(chunk);
+				}
+			}
+
+		};
+	}
+
+	/**
+	 * Adapt an {@link IBufferProducer} to fill {@link ByteBuffer}s; the bytes are produced in an intermediate array of
+	 * the size of the space remaining in the buffer (which is allocated again only when that size changes)
+	 * 
+	 * @param producer
+	 * @return
+	 */
+	public static IByteBufferProducer asByteBufferProducer(final IBufferProducer producer) {
+		return new IByteBufferProducer() {
+
+			private byte[] chunk;
+
+			@Override
+			public int fillBuffer(ByteBuffer buffer) throws Exception {
+				int remaining = buffer.remaining();
+				if (chunk == null || chunk.length != remaining)
+					chunk = new byte[remaining];
+				int count = producer.fillBuffer(chunk);
+				if (count > 0)
+					buffer.put(chunk, 0, count);
+				return count;
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,96 @@
+package lah.spectre.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Implementation of {@link IBufferProcessor} that chains several processing stages: every chunk of the stream goes
+ * through each stage in the order they are added, so a pipeline also serves as a tee to fan the stream out to several
+ * consumers. Stages added with {@link #addAsync} run on their own consumer thread behind an
+ * {@link AsyncBufferProcessor} so that they do not hold up the other stages nor the producer.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class BufferPipeline implements IBufferProcessor, Closeable {
+
+	private final List<IBufferProcessor> stages = new ArrayList<IBufferProcessor>();
+
+	/**
+	 * Add a stage processing the chunks on the producer thread
+	 * 
+	 * @param stage
+	 * @return This pipeline
+	 */
+	public BufferPipeline add(IBufferProcessor stage) {
+		stages.add(stage);
+		return this;
+	}
+
+	/**
+	 * Add a stage processing the chunks on a separate daemon thread
+	 * 
+	 * @param stage
+	 * @param capacity
+	 *            Number of chunks that can be buffered for the stage
+	 * @param policy
+	 *            What to do when the stage cannot keep up
+	 * @return This pipeline
+	 */
+	public BufferPipeline addAsync(IBufferProcessor stage, int capacity, AsyncBufferProcessor.Backpressure policy) {
+		return addAsync(stage, capacity, policy, null);
+	}
+
+	/**
+	 * Add a stage processing the chunks on a thread provided by an {@link Executor}
+	 * 
+	 * @param stage
+	 * @param capacity
+	 *            Number of chunks that can be buffered for the stage
+	 * @param policy
+	 *            What to do when the stage cannot keep up
+	 * @param executor
+	 *            Executor to run the stage, {@literal null} to start a new daemon thread
+	 * @return This pipeline
+	 */
+	public BufferPipeline addAsync(IBufferProcessor stage, int capacity, AsyncBufferProcessor.Backpressure policy,
+			Executor executor) {
+		stages.add(new AsyncBufferProcessor(stage, capacity, policy, executor));
+		return this;
+	}
+
+	/**
+	 * Wait for the asynchronous stages to process their remaining chunks
+	 * 
+	 * @throws IOException
+	 *             the first failure of an asynchronous stage
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException exception = null;
+		for (IBufferProcessor stage : stages) {
+			if (!(stage instanceof AsyncBufferProcessor))
+				continue;
+			try {
+				((AsyncBufferProcessor) stage).close();
+			} catch (IOException e) {
+				if (exception == null)
+					exception = e;
+				else
+					exception.addSuppressed(e);
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) throws Exception {
+		for (IBufferProcessor stage : stages)
+			stage.processBuffer(buffer, count);
+	}
+
+}
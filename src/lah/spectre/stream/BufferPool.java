@@ -0,0 +1,291 @@
+package lah.spectre.stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lah.spectre.BuildConfig;
+
+/**
+ * Pool of fixed size byte buffers to avoid allocating a fresh buffer for every stream processed. Each thread caches the
+ * last buffer it released so that the common acquire/release cycle on the same thread costs no synchronization at all;
+ * other buffers are kept in a bounded shared pool. Buffers exceeding the bound are simply dropped and left to the
+ * garbage collector. Buffers larger than {@link #MAX_THREAD_CACHED_SIZE} are not cached per thread, since every
+ * long-lived thread would otherwise pin one of them outside the bound.
+ * 
+ * Direct {@link ByteBuffer} slabs are pooled separately and only allocated on request via {@link #acquireDirect()}.
+ * 
+ * IMPORTANT REMARK: a buffer must not be used after it is released; in particular, {@link IBufferProcessor} must not
+ * hold a reference to the buffer it is given.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class BufferPool {
+
+	/**
+	 * Default maximum number of buffers kept in the shared pool
+	 */
+	public static final int DEFAULT_MAX_POOLED = 64;
+
+	/**
+	 * Pool for buffers of size {@link BuildConfig#BUFFER_SIZE}
+	 */
+	private static final BufferPool DEFAULT = new BufferPool(BuildConfig.BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+	/**
+	 * Size (in bytes) above which the buffers go straight to the shared pool instead of the per-thread cache
+	 */
+	public static final int MAX_THREAD_CACHED_SIZE = 64 * 1024;
+
+	/**
+	 * Maximum number of bytes kept in the shared pool of a size other than the default, so that pools of large buffers
+	 * keep fewer of them
+	 */
+	private static final int MAX_POOLED_BYTES = 1024 * 1024;
+
+	/**
+	 * Pools for the other buffer sizes, created on demand
+	 */
+	private static final ConcurrentHashMap<Integer, BufferPool> pools = new ConcurrentHashMap<Integer, BufferPool>();
+
+	/**
+	 * Get the pool for buffers of the common size {@link BuildConfig#BUFFER_SIZE}
+	 * 
+	 * @return The shared default pool
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get the shared pool for buffers of a specified size; the pool keeps at most {@link #DEFAULT_MAX_POOLED} buffers
+	 * and fewer of large buffers, down to a single one from 1 MB
+	 * 
+	 * @param buffer_size
+	 *            Size of the buffers in bytes
+	 * @return The shared pool whose buffers are of size exactly {@code buffer_size}
+	 */
+	public static BufferPool getPool(int buffer_size) {
+		if (buffer_size == DEFAULT.buffer_size)
+			return DEFAULT;
+		BufferPool pool = pools.get(buffer_size);
+		if (pool == null) {
+			BufferPool new_pool = new BufferPool(buffer_size, Math.max(1,
+					Math.min(DEFAULT_MAX_POOLED, MAX_POOLED_BYTES / buffer_size)));
+			pool = pools.putIfAbsent(buffer_size, new_pool);
+			if (pool == null)
+				pool = new_pool;
+		}
+		return pool;
+	}
+
+	/**
+	 * Size of the buffers managed by this pool
+	 */
+	private final int buffer_size;
+
+	/**
+	 * Number of buffers currently in the shared queues, including direct slabs
+	 */
+	private final AtomicInteger pooled_count = new AtomicInteger();
+
+	/**
+	 * Maximum number of buffers kept in the shared queues
+	 */
+	private final int max_pooled;
+
+	/**
+	 * Shared heap buffers
+	 */
+	private final ConcurrentLinkedQueue<byte[]> shared_buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+	 * Shared direct buffers
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> shared_direct_buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Per-thread cached heap buffer, {@literal null} if the buffers are larger than {@link #MAX_THREAD_CACHED_SIZE}
+	 */
+	private final ThreadLocal<byte[]> thread_buffer;
+
+	/**
+	 * Counters for pool sizing
+	 */
+	private final AtomicLong thread_hits = new AtomicLong(), shared_hits = new AtomicLong(),
+			misses = new AtomicLong(), discards = new AtomicLong();
+
+	/**
+	 * Construct a new pool
+	 * 
+	 * @param buffer_size
+	 *            Size of the buffers in bytes
+	 * @param max_pooled
+	 *            Maximum number of buffers kept in the shared pool (excluding the ones cached per thread)
+	 */
+	public BufferPool(int buffer_size, int max_pooled) {
+		if (buffer_size <= 0)
+			throw new IllegalArgumentException("Buffer size must be positive!");
+		this.buffer_size = buffer_size;
+		this.max_pooled = max_pooled;
+		thread_buffer = (buffer_size <= MAX_THREAD_CACHED_SIZE ? new ThreadLocal<byte[]>() : null);
+	}
+
+	/**
+	 * Obtain a heap buffer of size {@link #getBufferSize()}; the buffer content is unspecified
+	 * 
+	 * @return A buffer to be returned with {@link #release(byte[])} once it is no longer needed
+	 */
+	public byte[] acquire() {
+		byte[] buffer = (thread_buffer == null ? null : thread_buffer.get());
+		if (buffer != null) {
+			thread_buffer.set(null);
+			thread_hits.incrementAndGet();
+			return buffer;
+		}
+		buffer = shared_buffers.poll();
+		if (buffer != null) {
+			pooled_count.decrementAndGet();
+			shared_hits.incrementAndGet();
+			return buffer;
+		}
+		misses.incrementAndGet();
+		return new byte[buffer_size];
+	}
+
+	/**
+	 * Obtain a cleared direct buffer of capacity {@link #getBufferSize()}
+	 * 
+	 * @return A direct buffer to be returned with {@link #releaseDirect(ByteBuffer)} once it is no longer needed
+	 */
+	public ByteBuffer acquireDirect() {
+		ByteBuffer buffer = shared_direct_buffers.poll();
+		if (buffer != null) {
+			pooled_count.decrementAndGet();
+			shared_hits.incrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+		misses.incrementAndGet();
+		return ByteBuffer.allocateDirect(buffer_size);
+	}
+
+	public int getBufferSize() {
+		return buffer_size;
+	}
+
+	/**
+	 * Get the number of buffers dropped because the shared pool was full
+	 */
+	public long getDiscardCount() {
+		return discards.get();
+	}
+
+	/**
+	 * Get the number of acquisitions served by a pooled buffer
+	 */
+	public long getHitCount() {
+		return thread_hits.get() + shared_hits.get();
+	}
+
+	/**
+	 * Get the number of acquisitions that had to allocate a new buffer
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of buffers currently available in the shared pool
+	 */
+	public int getPooledCount() {
+		return pooled_count.get();
+	}
+
+	/**
+	 * Get the number of acquisitions served by the per-thread cache
+	 */
+	public long getThreadHitCount() {
+		return thread_hits.get();
+	}
+
+	/**
+	 * Return a buffer previously obtained from {@link #acquire()}; buffers of the wrong size are ignored
+	 * 
+	 * @param buffer
+	 *            The buffer to return, can be {@literal null}
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != buffer_size)
+			return;
+		if (thread_buffer != null && thread_buffer.get() == null) {
+			thread_buffer.set(buffer);
+			return;
+		}
+		if (reserveSlot())
+			shared_buffers.offer(buffer);
+	}
+
+	/**
+	 * Return a buffer directly to the shared pool, bypassing the per-thread cache; this should be used by short-lived
+	 * threads whose cached buffer would otherwise be lost when the thread terminates
+	 * 
+	 * @param buffer
+	 *            The buffer to return, can be {@literal null}
+	 */
+	public void releaseShared(byte[] buffer) {
+		if (buffer == null || buffer.length != buffer_size)
+			return;
+		if (reserveSlot())
+			shared_buffers.offer(buffer);
+	}
+
+	/**
+	 * Return a direct buffer previously obtained from {@link #acquireDirect()}
+	 * 
+	 * @param buffer
+	 *            The buffer to return, can be {@literal null}
+	 */
+	public void releaseDirect(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || buffer.capacity() != buffer_size)
+			return;
+		if (reserveSlot())
+			shared_direct_buffers.offer(buffer);
+	}
+
+	/**
+	 * Reserve a place in the shared pool, counting the discarded buffer if the pool is full
+	 */
+	private boolean reserveSlot() {
+		while (true) {
+			int count = pooled_count.get();
+			if (count >= max_pooled) {
+				discards.incrementAndGet();
+				return false;
+			}
+			if (pooled_count.compareAndSet(count, count + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Reset all hit/miss counters
+	 */
+	public void resetCounters() {
+		thread_hits.set(0);
+		shared_hits.set(0);
+		misses.set(0);
+		discards.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool[size=" + buffer_size + ", pooled=" + pooled_count.get() + ", thread_hits="
+				+ thread_hits.get() + ", shared_hits=" + shared_hits.get() + ", misses=" + misses.get()
+				+ ", discards=" + discards.get() + "]";
+	}
+
+}
@@ -0,0 +1,95 @@
+package lah.spectre.stream;
+
+import java.io.InputStream;
+
+import lah.spectre.interfaces.IExceptionHandler;
+import lah.spectre.interfaces.IResultListener;
+
+/**
+ * Task processing a stream to its end, reporting the outcome to a listener or an exception handler. It runs on a
+ * {@link BufferProcessingThread} or on any thread provided by an executor, for instance a virtual thread.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class BufferProcessingTask implements Runnable {
+
+	private final BufferSizePolicy buffer_size_policy;
+
+	private final IExceptionHandler exception_handler;
+
+	private final InputStream input_stream;
+
+	private final IResultListener<Void> result_listener;
+
+	private final StreamStatistics statistics;
+
+	private final IBufferProcessor stream_processor;
+
+	/**
+	 * Construct a task
+	 * 
+	 * @param input_stream
+	 *            Stream to process
+	 * @param processor
+	 *            Processor for the stream, can be {@literal null} to discard the content
+	 * @param exception_handler
+	 *            Handler to notify if reading or processing fails, can be {@literal null}
+	 * @param result_listener
+	 *            Listener to notify once the stream is fully processed, can be {@literal null}
+	 * @param buffer_size_policy
+	 *            Policy to size the buffers
+	 * @param name
+	 *            Name of the statistics of the stream, can be {@literal null}
+	 */
+	public BufferProcessingTask(InputStream input_stream, IBufferProcessor processor,
+			IExceptionHandler exception_handler, IResultListener<Void> result_listener,
+			BufferSizePolicy buffer_size_policy, String name) {
+		this.input_stream = input_stream;
+		this.stream_processor = processor;
+		this.exception_handler = exception_handler;
+		this.result_listener = result_listener;
+		this.buffer_size_policy = buffer_size_policy;
+		this.statistics = StreamStatistics.forNamedStream(name);
+	}
+
+	/**
+	 * Get the statistics of the stream processed by this task
+	 * 
+	 * @return
+	 */
+	public StreamStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public void run() {
+		if (input_stream == null)
+			return;
+
+		int count;
+		BufferSizePolicy.Sizer sizer = buffer_size_policy.newSizer(input_stream);
+		byte[] buffer = sizer.acquire();
+		try {
+			long time = statistics.start();
+			while ((count = input_stream.read(buffer)) != -1) {
+				time = statistics.recordRead(time, count);
+				if (stream_processor != null)
+					stream_processor.processBuffer(buffer, count);
+				time = statistics.recordProcessing(time);
+				buffer = sizer.next(buffer, count);
+			}
+			statistics.recordRead(time, -1);
+			if (result_listener != null)
+				result_listener.onResultObtained(null);
+		} catch (Exception e) {
+			if (exception_handler != null)
+				exception_handler.onException(e);
+		} finally {
+			// the thread may terminate right after (or be a virtual thread), so hand the buffer back to the shared pool
+			sizer.releaseShared(buffer);
+			statistics.finish();
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package lah.spectre.stream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of byte buffers to hand chunks of a stream from one thread to another.
+ * The slots are buffers borrowed from a {@link BufferPool} once and reused, so the hand-off copies each chunk exactly
+ * once and allocates nothing (unless a chunk is larger than the pooled buffers, in which case the slot is expanded).
+ * 
+ * Exactly one thread may call the producer methods ({@link #offer(byte[], int)}, {@link #put(byte[], int)}) and
+ * exactly one thread may call the consumer methods ({@link #poll(IBufferProcessor)}, {@link #awaitData(long)}). A
+ * waiting thread is woken up by the other one when a slot is filled or freed, so that idle rings cost no wakeups.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class BufferRing {
+
+	private volatile boolean consumer_waiting;
+
+	private final int[] counts;
+
+	/**
+	 * Index of the next slot to consume
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * Whether the consumer is signalled to check a condition other than the content of the ring, see {@link #signal()}
+	 */
+	private boolean is_signalled;
+
+	private final BufferPool pool;
+
+	private volatile boolean producer_waiting;
+
+	private final byte[][] slots;
+
+	/**
+	 * Index of the next slot to fill
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Construct a ring with buffers from the default pool
+	 * 
+	 * @param capacity
+	 *            Number of slots
+	 */
+	public BufferRing(int capacity) {
+		this(capacity, BufferPool.getDefault());
+	}
+
+	/**
+	 * Construct a ring
+	 * 
+	 * @param capacity
+	 *            Number of slots
+	 * @param pool
+	 *            Pool to borrow the slot buffers from
+	 */
+	public BufferRing(int capacity, BufferPool pool) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Ring capacity must be positive!");
+		this.pool = pool;
+		slots = new byte[capacity][];
+		counts = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			slots[i] = pool.acquire();
+	}
+
+	/**
+	 * Wait until there is something to consume or the consumer is signalled; for the consumer thread only
+	 * 
+	 * @param timeout
+	 *            Maximum waiting time in milliseconds
+	 * @return {@literal true} if the ring is not empty
+	 * @throws InterruptedException
+	 */
+	public boolean awaitData(long timeout) throws InterruptedException {
+		if (!isEmpty())
+			return true;
+		synchronized (this) {
+			consumer_waiting = true;
+			try {
+				// The producer reads the flag after filling a slot: either it notifies or the slot is seen here
+				if (isEmpty() && !is_signalled)
+					wait(Math.max(1, timeout));
+			} finally {
+				consumer_waiting = false;
+				is_signalled = false;
+			}
+		}
+		return !isEmpty();
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	public boolean isFull() {
+		return tail.get() - head.get() == slots.length;
+	}
+
+	/**
+	 * Copy a chunk into the ring if there is a free slot; for the producer thread only
+	 * 
+	 * @param buffer
+	 * @param count
+	 * @return {@literal false} if the ring is full
+	 */
+	public boolean offer(byte[] buffer, int count) {
+		long t = tail.get();
+		if (t - head.get() == slots.length)
+			return false;
+		int index = (int) (t % slots.length);
+		if (slots[index].length < count)
+			slots[index] = new byte[count];
+		System.arraycopy(buffer, 0, slots[index], 0, count);
+		counts[index] = count;
+		tail.set(t + 1);
+		if (consumer_waiting) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Process the oldest chunk in place and free its slot; for the consumer thread only
+	 * 
+	 * @param processor
+	 *            Processor to consume the chunk
+	 * @return {@literal false} if the ring is empty
+	 * @throws Exception
+	 *             raised by the processor, the chunk is consumed nonetheless
+	 */
+	public boolean poll(IBufferProcessor processor) throws Exception {
+		long h = head.get();
+		if (h == tail.get())
+			return false;
+		int index = (int) (h % slots.length);
+		try {
+			processor.processBuffer(slots[index], counts[index]);
+		} finally {
+			head.set(h + 1);
+			if (producer_waiting) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a chunk into the ring, waiting for a free slot if necessary; for the producer thread only
+	 * 
+	 * @param buffer
+	 * @param count
+	 * @throws InterruptedException
+	 */
+	public void put(byte[] buffer, int count) throws InterruptedException {
+		while (!offer(buffer, count)) {
+			synchronized (this) {
+				producer_waiting = true;
+				try {
+					if (isFull())
+						wait();
+				} finally {
+					producer_waiting = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give the slot buffers back to the pool; the ring must not be used afterward
+	 */
+	public void release() {
+		for (int i = 0; i < slots.length; i++) {
+			pool.release(slots[i]);
+			slots[i] = null;
+		}
+	}
+
+	/**
+	 * Wake the consumer up, or prevent its next wait, so that it checks a condition other than the content of the ring
+	 * (for instance, the end of the stream)
+	 */
+	public synchronized void signal() {
+		is_signalled = true;
+		notifyAll();
+	}
+
+}
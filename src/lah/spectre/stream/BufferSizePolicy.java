@@ -0,0 +1,350 @@
+package lah.spectre.stream;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import lah.spectre.BuildConfig;
+
+/**
+ * Policy choosing the size of the buffers a stream is read with, in place of the common
+ * {@link BuildConfig#BUFFER_SIZE}: a file copy prefers large buffers, a pipe rarely delivers more than 64 KB per read
+ * and an interactive stream delivers a few bytes at a time.
+ * 
+ * A policy creates a {@link Sizer} for each stream, which borrows its buffers from the {@link BufferPool} of the
+ * current size and may switch to another size after each read.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public abstract class BufferSizePolicy {
+
+	/**
+	 * Policy growing the buffer while reads fill it and shrinking it while reads leave most of it unused
+	 */
+	private static class AdaptivePolicy extends BufferSizePolicy {
+
+		private final int initial_size, max_size, min_size;
+
+		AdaptivePolicy(int min_size, int initial_size, int max_size) {
+			if (min_size <= 0 || initial_size < min_size || max_size < initial_size)
+				throw new IllegalArgumentException("Invalid buffer sizes!");
+			this.min_size = min_size;
+			this.initial_size = initial_size;
+			this.max_size = max_size;
+		}
+
+		@Override
+		public Sizer newSizerFor(StreamType type) {
+			return new Sizer(initial_size) {
+
+				/**
+				 * Number of consecutive reads that filled, respectively used less than a quarter of, the buffer
+				 */
+				private int full_reads, sparse_reads;
+
+				@Override
+				protected int onRead(int size, int count) {
+					if (count >= size) {
+						sparse_reads = 0;
+						if (++full_reads >= GROW_AFTER_FULL_READS && size < max_size) {
+							full_reads = 0;
+							return Math.min(max_size, size * 2);
+						}
+					} else if (count < size / 4) {
+						full_reads = 0;
+						if (++sparse_reads >= SHRINK_AFTER_SPARSE_READS && size > min_size) {
+							sparse_reads = 0;
+							return Math.max(min_size, size / 2);
+						}
+					} else {
+						full_reads = 0;
+						sparse_reads = 0;
+					}
+					return size;
+				}
+
+			};
+		}
+
+		@Override
+		public String toString() {
+			return "adaptive[" + min_size + ".." + max_size + "]";
+		}
+
+	}
+
+	/**
+	 * Policy with the same size for all streams
+	 */
+	private static class FixedPolicy extends BufferSizePolicy {
+
+		private final int size;
+
+		FixedPolicy(int size) {
+			if (size <= 0)
+				throw new IllegalArgumentException("Buffer size must be positive!");
+			this.size = size;
+		}
+
+		@Override
+		public Sizer newSizerFor(StreamType type) {
+			return new Sizer(size);
+		}
+
+		@Override
+		public String toString() {
+			return "fixed[" + size + "]";
+		}
+
+	}
+
+	/**
+	 * Policy with a size depending on the type of the stream
+	 */
+	private static class HintedPolicy extends BufferSizePolicy {
+
+		private final int file_size, other_size, pipe_size;
+
+		HintedPolicy(int file_size, int pipe_size, int other_size) {
+			if (file_size <= 0 || pipe_size <= 0 || other_size <= 0)
+				throw new IllegalArgumentException("Buffer size must be positive!");
+			this.file_size = file_size;
+			this.pipe_size = pipe_size;
+			this.other_size = other_size;
+		}
+
+		@Override
+		public Sizer newSizerFor(StreamType type) {
+			if (type == null)
+				return new Sizer(other_size);
+			switch (type) {
+			case FILE:
+				return new Sizer(file_size);
+			case PIPE:
+			case SOCKET:
+				return new Sizer(pipe_size);
+			default:
+				return new Sizer(other_size);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "hinted[file=" + file_size + ", pipe=" + pipe_size + ", other=" + other_size + "]";
+		}
+
+	}
+
+	/**
+	 * Per-stream buffer sizing state; not thread-safe, one instance serves one stream
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static class Sizer {
+
+		private int size;
+
+		protected Sizer(int size) {
+			this.size = size;
+		}
+
+		/**
+		 * Obtain a buffer of the current size
+		 * 
+		 * @return
+		 */
+		public byte[] acquire() {
+			return BufferPool.getPool(size).acquire();
+		}
+
+		/**
+		 * Get the current buffer size
+		 * 
+		 * @return
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Record a read and choose the next size; the default implementation keeps the size
+		 * 
+		 * @param size
+		 *            Size of the buffer read into
+		 * @param count
+		 *            Number of bytes read
+		 * @return The size of the buffer for the next read
+		 */
+		protected int onRead(int size, int count) {
+			return size;
+		}
+
+		/**
+		 * Record a read into a buffer and get the buffer for the next read, which is a new buffer if the size changes
+		 * 
+		 * @param buffer
+		 *            Buffer obtained from this sizer and just read into
+		 * @param count
+		 *            Number of bytes read
+		 * @return The buffer to read into next
+		 */
+		public byte[] next(byte[] buffer, int count) {
+			int next_size = onRead(size, count);
+			if (next_size == size)
+				return buffer;
+			size = next_size;
+			BufferPool.getPool(buffer.length).release(buffer);
+			return BufferPool.getPool(next_size).acquire();
+		}
+
+		/**
+		 * Return a buffer obtained from this sizer
+		 * 
+		 * @param buffer
+		 */
+		public void release(byte[] buffer) {
+			if (buffer != null)
+				BufferPool.getPool(buffer.length).release(buffer);
+		}
+
+		/**
+		 * Return a buffer obtained from this sizer by a thread that terminates afterward, see
+		 * {@link BufferPool#releaseShared(byte[])}
+		 * 
+		 * @param buffer
+		 */
+		public void releaseShared(byte[] buffer) {
+			if (buffer != null)
+				BufferPool.getPool(buffer.length).releaseShared(buffer);
+		}
+
+	}
+
+	/**
+	 * Classes of streams for {@link BufferSizePolicy#hinted(int, int, int)}
+	 */
+	public static enum StreamType {
+		FILE, OTHER, PIPE, SOCKET;
+	}
+
+	/**
+	 * Policy using {@link BuildConfig#BUFFER_SIZE} for all streams, that is, the historical behavior
+	 */
+	public static final BufferSizePolicy DEFAULT = new FixedPolicy(BuildConfig.BUFFER_SIZE);
+
+	/**
+	 * Number of consecutive full reads after which an adaptive buffer doubles
+	 */
+	private static final int GROW_AFTER_FULL_READS = 2;
+
+	/**
+	 * Number of consecutive reads using less than a quarter of an adaptive buffer after which it is halved
+	 */
+	private static final int SHRINK_AFTER_SPARSE_READS = 8;
+
+	/**
+	 * Get a policy starting with the default size, doubling the buffer after consecutive reads fill it and halving it
+	 * after consecutive reads use less than a quarter of it
+	 * 
+	 * @param min_size
+	 *            Smallest buffer size
+	 * @param max_size
+	 *            Largest buffer size
+	 * @return
+	 */
+	public static BufferSizePolicy adaptive(int min_size, int max_size) {
+		return new AdaptivePolicy(min_size, Math.max(min_size, Math.min(max_size, BuildConfig.BUFFER_SIZE)), max_size);
+	}
+
+	/**
+	 * Get a policy with the same buffer size for all streams
+	 * 
+	 * @param size
+	 * @return
+	 */
+	public static BufferSizePolicy fixed(int size) {
+		return size == BuildConfig.BUFFER_SIZE ? DEFAULT : new FixedPolicy(size);
+	}
+
+	/**
+	 * Classify a stream or channel by its type; the streams of a {@link Process} and of a socket cannot be told apart
+	 * from other streams, so that a caller knowing where its stream comes from should rather state the type with
+	 * {@link #forStreamType(StreamType)}
+	 * 
+	 * @param stream
+	 *            Stream or channel, can be {@literal null}
+	 * @return {@link StreamType#FILE} for file streams and channels, {@link StreamType#SOCKET} for socket channels and
+	 *         {@link StreamType#OTHER} otherwise
+	 */
+	public static StreamType getStreamType(Object stream) {
+		if (stream instanceof FileInputStream || stream instanceof FileOutputStream || stream instanceof FileChannel)
+			return StreamType.FILE;
+		if (stream instanceof SocketChannel)
+			return StreamType.SOCKET;
+		return StreamType.OTHER;
+	}
+
+	/**
+	 * Get a policy sizing the buffers according to the {@link StreamType} of the stream
+	 * 
+	 * @param file_size
+	 *            Buffer size for files
+	 * @param pipe_size
+	 *            Buffer size for process pipes and sockets
+	 * @param other_size
+	 *            Buffer size for the other streams
+	 * @return
+	 */
+	public static BufferSizePolicy hinted(int file_size, int pipe_size, int other_size) {
+		return new HintedPolicy(file_size, pipe_size, other_size);
+	}
+
+	/**
+	 * Get a policy sizing the buffers of all streams as this policy sizes those of a given type, for a caller which
+	 * knows where its streams come from (for instance, {@link StreamType#PIPE} for the output of a process)
+	 * 
+	 * @param type
+	 * @return
+	 */
+	public BufferSizePolicy forStreamType(final StreamType type) {
+		final BufferSizePolicy policy = this;
+		return new BufferSizePolicy() {
+
+			@Override
+			public Sizer newSizerFor(StreamType ignored_type) {
+				return policy.newSizerFor(type);
+			}
+
+			@Override
+			public String toString() {
+				return policy + "[" + type + "]";
+			}
+
+		};
+	}
+
+	/**
+	 * Create the sizing state for a stream
+	 * 
+	 * @param stream
+	 *            The stream or channel to read, classified with {@link #getStreamType(Object)}; can be {@literal null}
+	 * @return
+	 */
+	public Sizer newSizer(Object stream) {
+		return newSizerFor(getStreamType(stream));
+	}
+
+	/**
+	 * Create the sizing state for a stream of a given type
+	 * 
+	 * @param type
+	 *            The type of the stream to read, used as a hint by some policies; {@literal null} is handled as
+	 *            {@link StreamType#OTHER}
+	 * @return
+	 */
+	public abstract Sizer newSizerFor(StreamType type);
+
+}
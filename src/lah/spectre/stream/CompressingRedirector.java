@@ -0,0 +1,238 @@
+package lah.spectre.stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Variant of {@link StreamRedirector} compressing the stream (gzip or zlib format) before it reaches the
+ * output. The compression can optionally run on a separate thread, behind an {@link AsyncBufferProcessor}, so that
+ * the thread reading the stream is not slowed down. The compression ratio and throughput are recorded to help choosing
+ * the compression level.
+ * 
+ * {@link #close()} must be invoked at the end to finish the compressed stream and close the output.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class CompressingRedirector implements IBufferProcessor, Closeable {
+
+	/**
+	 * Compressed formats
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static enum Format {
+		/**
+		 * Zlib format (RFC 1950: the deflate data with a header and an Adler-32 checksum) as produced by
+		 * {@link DeflaterOutputStream} and read back by {@link java.util.zip.InflaterInputStream}
+		 */
+		DEFLATE,
+		/**
+		 * Gzip file format
+		 */
+		GZIP;
+	}
+
+	/**
+	 * {@link GZIPOutputStream} with a configurable compression level
+	 */
+	private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+
+		LeveledGZIPOutputStream(OutputStream out, int size, int level) throws IOException {
+			super(out, size);
+			try {
+				def.setLevel(level);
+			} catch (IllegalArgumentException e) {
+				// The stream is given up: release the native memory of its deflater
+				def.end();
+				throw e;
+			}
+		}
+
+		Deflater getDeflater() {
+			return def;
+		}
+
+	}
+
+	/**
+	 * Number of chunks buffered for the compressing thread in asynchronous mode
+	 */
+	private static final int ASYNC_CAPACITY = 16;
+
+	/**
+	 * Size of the output buffer of the compressor
+	 */
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Processor in front of the compressor in asynchronous mode
+	 */
+	private final AsyncBufferProcessor async_processor;
+
+	/**
+	 * Processor feeding the compressor
+	 */
+	private final IBufferProcessor compressing_processor = new IBufferProcessor() {
+
+		@Override
+		public void processBuffer(byte[] buffer, int count) throws Exception {
+			long start = System.nanoTime();
+			compressor.write(buffer, 0, count);
+			compression_time += System.nanoTime() - start;
+			bytes_in += count;
+			bytes_out = deflater.getBytesWritten();
+		}
+
+	};
+
+	private volatile long bytes_in, bytes_out, compression_time;
+
+	private final DeflaterOutputStream compressor;
+
+	private final Deflater deflater;
+
+	/**
+	 * Construct an instance compressing into a file
+	 * 
+	 * @param output_file
+	 * @param format
+	 *            Compressed format
+	 * @param level
+	 *            Compression level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}
+	 * @param async
+	 *            {@literal true} to compress on a separate thread
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public CompressingRedirector(File output_file, Format format, int level, boolean async)
+			throws FileNotFoundException, IOException {
+		this(new FileOutputStream(output_file), format, level, async);
+	}
+
+	/**
+	 * Construct an instance compressing into a stream
+	 * 
+	 * @param output_stream
+	 *            Stream to write the compressed bytes to, it is closed by {@link #close()} or right away if the
+	 *            construction fails
+	 * @param format
+	 *            Compressed format
+	 * @param level
+	 *            Compression level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}
+	 * @param async
+	 *            {@literal true} to compress on a separate thread
+	 * @throws IOException
+	 */
+	public CompressingRedirector(OutputStream output_stream, Format format, int level, boolean async)
+			throws IOException {
+		Deflater new_deflater = null;
+		boolean constructed = false;
+		try {
+			if (format == Format.GZIP) {
+				LeveledGZIPOutputStream gzip_stream = new LeveledGZIPOutputStream(output_stream, OUTPUT_BUFFER_SIZE,
+						level);
+				compressor = gzip_stream;
+				new_deflater = gzip_stream.getDeflater();
+			} else {
+				new_deflater = new Deflater(level);
+				compressor = new DeflaterOutputStream(output_stream, new_deflater, OUTPUT_BUFFER_SIZE);
+			}
+			deflater = new_deflater;
+			async_processor = (async ? new AsyncBufferProcessor(compressing_processor, ASYNC_CAPACITY,
+					AsyncBufferProcessor.Backpressure.BLOCK) : null);
+			constructed = true;
+		} finally {
+			// Invalid level or failure to write the gzip header: nobody else can close the output or end the deflater
+			if (!constructed) {
+				Streams.closeStream(output_stream);
+				if (new_deflater != null)
+					new_deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Finish the compressed stream and close the output
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (async_processor != null)
+				async_processor.close();
+			compressor.finish();
+			bytes_out = deflater.getBytesWritten();
+		} finally {
+			compressor.close();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Get the number of bytes compressed so far
+	 * 
+	 * @return
+	 */
+	public long getBytesIn() {
+		return bytes_in;
+	}
+
+	/**
+	 * Get the number of compressed bytes produced so far (excluding the gzip header and trailer)
+	 * 
+	 * @return
+	 */
+	public long getBytesOut() {
+		return bytes_out;
+	}
+
+	/**
+	 * Get the ratio of compressed size over uncompressed size
+	 * 
+	 * @return The ratio, 1 if nothing has been compressed
+	 */
+	public double getCompressionRatio() {
+		long in = bytes_in;
+		return in == 0 ? 1 : (double) bytes_out / in;
+	}
+
+	/**
+	 * Get the time spent compressing
+	 * 
+	 * @return Compression time in nanoseconds
+	 */
+	public long getCompressionTime() {
+		return compression_time;
+	}
+
+	/**
+	 * Get the compression throughput
+	 * 
+	 * @return Number of uncompressed bytes compressed per second of compression time
+	 */
+	public double getThroughput() {
+		long time = compression_time;
+		return time == 0 ? 0 : bytes_in * 1e9 / time;
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) throws Exception {
+		if (async_processor != null)
+			async_processor.processBuffer(buffer, count);
+		else
+			compressing_processor.processBuffer(buffer, count);
+	}
+
+}
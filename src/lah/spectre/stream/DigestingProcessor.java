@@ -0,0 +1,243 @@
+package lah.spectre.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Implementation of {@link IBufferProcessor} (and {@link IByteBufferProcessor}) that computes a checksum or a message
+ * digest of a stream incrementally as the bytes flow through, optionally forwarding them to a downstream processor, so
+ * that the stream does not need to be read again to be verified.
+ * 
+ * The supported algorithms are {@code CRC32}, {@code CRC32C} (only if the runtime provides
+ * {@code java.util.zip.CRC32C}), {@code Adler32} and all {@link MessageDigest} algorithms such as {@code MD5} and
+ * {@code SHA-256}. Checksums are presented as big-endian byte arrays so that all algorithms compare the same way.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class DigestingProcessor implements IBufferProcessor, IByteBufferProcessor {
+
+	/**
+	 * Exception raised when the digest of a stream differs from the expected one
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static class MismatchException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String actual;
+
+		private final String expected;
+
+		public MismatchException(String algorithm, String expected, String actual) {
+			super(algorithm + " mismatch: expected " + expected + " but got " + actual);
+			this.expected = expected;
+			this.actual = actual;
+		}
+
+		public String getActual() {
+			return actual;
+		}
+
+		public String getExpected() {
+			return expected;
+		}
+
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static Checksum newChecksum(String algorithm) throws NoSuchAlgorithmException {
+		if (algorithm.equalsIgnoreCase("CRC32"))
+			return new CRC32();
+		if (algorithm.equalsIgnoreCase("Adler32"))
+			return new Adler32();
+		if (algorithm.equalsIgnoreCase("CRC32C")) {
+			try {
+				return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				throw new NoSuchAlgorithmException("CRC32C is not available on this runtime");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Convert bytes to a lowercase hexadecimal string
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	private final String algorithm;
+
+	private final Checksum checksum;
+
+	private long count;
+
+	/**
+	 * Digest of the stream once computed
+	 */
+	private byte[] digest;
+
+	private IBufferProcessor downstream;
+
+	private final MessageDigest message_digest;
+
+	/**
+	 * Construct a processor
+	 * 
+	 * @param algorithm
+	 *            Name of the checksum or digest algorithm
+	 * @param downstream
+	 *            Processor to forward the bytes to after they are digested, can be {@literal null}
+	 * @throws NoSuchAlgorithmException
+	 *             if the algorithm is not supported
+	 */
+	public DigestingProcessor(String algorithm, IBufferProcessor downstream) throws NoSuchAlgorithmException {
+		this.algorithm = algorithm;
+		this.downstream = downstream;
+		checksum = newChecksum(algorithm);
+		message_digest = checksum == null ? MessageDigest.getInstance(algorithm) : null;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Get the number of bytes digested
+	 * 
+	 * @return
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the digest of all bytes processed; no more bytes can be processed until {@link #reset()}
+	 * 
+	 * @return
+	 */
+	public byte[] getDigest() {
+		if (digest == null) {
+			if (checksum != null) {
+				long value = checksum.getValue();
+				digest = new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+						(byte) value };
+			} else {
+				digest = message_digest.digest();
+			}
+		}
+		return digest.clone();
+	}
+
+	/**
+	 * Get the digest of all bytes processed as a lowercase hexadecimal string
+	 * 
+	 * @return
+	 */
+	public String getHexDigest() {
+		return toHex(getDigest());
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) throws Exception {
+		update(buffer, 0, count);
+		if (downstream != null)
+			downstream.processBuffer(buffer, count);
+	}
+
+	@Override
+	public void processBuffer(ByteBuffer buffer) throws Exception {
+		if (digest != null)
+			throw new IllegalStateException("Digest is already computed");
+		int length = buffer.remaining();
+		if (buffer.hasArray()) {
+			update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		} else if (message_digest != null) {
+			message_digest.update(buffer.duplicate());
+			count += length;
+		} else {
+			ByteBuffer source = buffer.duplicate();
+			byte[] chunk = BufferPool.getDefault().acquire();
+			try {
+				while (source.hasRemaining()) {
+					int n = Math.min(chunk.length, source.remaining());
+					source.get(chunk, 0, n);
+					update(chunk, 0, n);
+				}
+			} finally {
+				BufferPool.getDefault().release(chunk);
+			}
+		}
+		if (downstream != null) {
+			if (downstream instanceof IByteBufferProcessor)
+				((IByteBufferProcessor) downstream).processBuffer(buffer);
+			else
+				BufferAdapters.asByteBufferProcessor(downstream).processBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Start a new digest
+	 */
+	public void reset() {
+		if (checksum != null)
+			checksum.reset();
+		else
+			message_digest.reset();
+		digest = null;
+		count = 0;
+	}
+
+	/**
+	 * Set the processor to forward the bytes to, so that the processor (and thus the validity of the algorithm) can be
+	 * set up before its downstream, for instance before the output file is opened
+	 * 
+	 * @param downstream
+	 */
+	void setDownstream(IBufferProcessor downstream) {
+		this.downstream = downstream;
+	}
+
+	private void update(byte[] buffer, int offset, int length) {
+		if (digest != null)
+			throw new IllegalStateException("Digest is already computed");
+		if (checksum != null)
+			checksum.update(buffer, offset, length);
+		else
+			message_digest.update(buffer, offset, length);
+		count += length;
+	}
+
+	/**
+	 * Check the digest of all bytes processed against an expected value
+	 * 
+	 * @param expected_digest
+	 *            Expected digest in hexadecimal (case insensitive), {@literal null} to accept any digest
+	 * @throws MismatchException
+	 *             if the digests differ
+	 */
+	public void verify(String expected_digest) throws MismatchException {
+		String actual = getHexDigest();
+		if (expected_digest != null && !expected_digest.equalsIgnoreCase(actual))
+			throw new MismatchException(algorithm, expected_digest, actual);
+	}
+
+}
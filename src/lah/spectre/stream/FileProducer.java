@@ -0,0 +1,51 @@
+package lah.spectre.stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Implementation of {@link IBufferProducer} producing the content of a file, for instance to supply the standard input
+ * of an external process. The file is opened on the first buffer and closed at its end; a process whose input comes
+ * from this producer can read the file directly instead (see {@link ProcessBuilder.Redirect#from(File)}), in which
+ * case the file is never opened here.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class FileProducer implements IBufferProducer, Closeable {
+
+	private final File file;
+
+	private FileInputStream in_stream;
+
+	public FileProducer(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Close the file if it is open, when the producer is abandoned before its end
+	 */
+	@Override
+	public void close() throws IOException {
+		if (in_stream != null)
+			in_stream.close();
+		in_stream = null;
+	}
+
+	@Override
+	public int fillBuffer(byte[] buffer) throws Exception {
+		if (in_stream == null)
+			in_stream = new FileInputStream(file);
+		int count = in_stream.read(buffer);
+		if (count == -1)
+			close();
+		return count;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+}
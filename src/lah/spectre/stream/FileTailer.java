@@ -0,0 +1,261 @@
+package lah.spectre.stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import lah.spectre.interfaces.IExceptionHandler;
+
+/**
+ * Follow a growing file (such as the log of an external tool) and feed the appended bytes, and only them, to an
+ * {@link IBufferProcessor}, like {@code tail -F}. The tailer keeps its position in the file and wakes up on changes
+ * notified by a {@link WatchService}, or at a fixed interval if the file system cannot be watched.
+ * 
+ * A file shrinking below the current position is considered truncated and is read again from its start; a file
+ * replaced by another one (log rotation, detected by its file key) is read to its end before the new file is followed
+ * from its start. The file does not need to exist when the tailer starts.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class FileTailer implements Runnable, Closeable {
+
+	/**
+	 * Default maximum time (in milliseconds) between two checks of the file
+	 */
+	public static final long DEFAULT_POLL_INTERVAL = 1000;
+
+	private FileChannel channel;
+
+	private volatile boolean closed;
+
+	private final IExceptionHandler exception_handler;
+
+	/**
+	 * Key identifying the file currently open, {@literal null} if the file system has none
+	 */
+	private Object file_key;
+
+	/**
+	 * Whether to skip the content of the first file found
+	 */
+	private boolean from_end;
+
+	private final Path path;
+
+	private final long poll_interval;
+
+	private volatile long position;
+
+	private final IBufferProcessor processor;
+
+	private Thread thread;
+
+	private volatile WatchService watcher;
+
+	/**
+	 * Construct a tailer processing the whole file, then the appended bytes, with the default poll interval
+	 * 
+	 * @param file
+	 * @param processor
+	 */
+	public FileTailer(File file, IBufferProcessor processor) {
+		this(file, processor, false, DEFAULT_POLL_INTERVAL, null);
+	}
+
+	/**
+	 * Construct a tailer
+	 * 
+	 * @param file
+	 *            The file to follow
+	 * @param processor
+	 *            Processor for the new bytes
+	 * @param from_end
+	 *            {@literal true} to only process bytes appended after the file is first opened
+	 * @param poll_interval
+	 *            Maximum time in milliseconds between two checks of the file, for changes the {@link WatchService}
+	 *            misses or if it is not available
+	 * @param exception_handler
+	 *            Handler to notify if following fails in {@link #run()}, can be {@literal null}
+	 */
+	public FileTailer(File file, IBufferProcessor processor, boolean from_end, long poll_interval,
+			IExceptionHandler exception_handler) {
+		if (poll_interval <= 0)
+			throw new IllegalArgumentException("Poll interval must be positive!");
+		this.path = file.getAbsoluteFile().toPath();
+		this.processor = processor;
+		this.from_end = from_end;
+		this.poll_interval = poll_interval;
+		this.exception_handler = exception_handler;
+	}
+
+	/**
+	 * Stop following the file; the thread in {@link #run()} returns within the poll interval
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		WatchService watcher = this.watcher;
+		if (watcher != null)
+			watcher.close();
+	}
+
+	private void closeChannel() {
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+		}
+		channel = null;
+		file_key = null;
+	}
+
+	/**
+	 * Get the key of the file currently at the path, {@literal null} if there is no file or no key
+	 */
+	private Object getFileKey() throws IOException {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the position in the current file of the next byte to process
+	 * 
+	 * @return
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	private boolean open() throws IOException {
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		file_key = getFileKey();
+		position = from_end ? channel.size() : 0;
+		from_end = false;
+		return true;
+	}
+
+	/**
+	 * Process the bytes appended since the last call, handling truncation and rotation; for callers that check the
+	 * file themselves instead of using {@link #run()}
+	 * 
+	 * @return Number of bytes processed
+	 * @throws Exception
+	 *             if the file cannot be read or the processor fails
+	 */
+	public synchronized long poll() throws Exception {
+		if (channel == null && !open())
+			return 0;
+		long total = 0;
+		byte[] buffer = BufferPool.getDefault().acquire();
+		try {
+			while (true) {
+				if (channel.size() < position)
+					position = 0; // truncated
+				ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+				int count;
+				while (!closed && (count = channel.read(wrapper, position)) > 0) {
+					if (processor != null)
+						processor.processBuffer(buffer, count);
+					position += count;
+					total += count;
+					wrapper.clear();
+				}
+				// The file open is fully processed, follow the new one if the file was rotated
+				Object current_key = getFileKey();
+				if (closed || current_key == null || current_key.equals(file_key))
+					break;
+				closeChannel();
+				if (!open())
+					break;
+			}
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+		return total;
+	}
+
+	/**
+	 * Follow the file until {@link #close()} is invoked or the thread is interrupted
+	 */
+	@Override
+	public void run() {
+		try {
+			try {
+				watcher = path.getFileSystem().newWatchService();
+				path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			} catch (Exception e) {
+				// Not supported for this file system: only poll
+				if (watcher != null)
+					watcher.close();
+				watcher = null;
+			}
+			// In case close() was invoked before the watcher was created
+			if (closed && watcher != null)
+				watcher.close();
+			while (!closed) {
+				poll();
+				if (watcher == null) {
+					Thread.sleep(poll_interval);
+					continue;
+				}
+				WatchKey key = watcher.poll(poll_interval, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			if (!closed && exception_handler != null)
+				exception_handler.onException(e);
+		} finally {
+			synchronized (this) {
+				closeChannel();
+				try {
+					if (watcher != null)
+						watcher.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Follow the file on a new daemon thread
+	 * 
+	 * @return The thread
+	 */
+	public synchronized Thread start() {
+		if (thread != null)
+			throw new IllegalStateException("Tailer is already started");
+		thread = new Thread(this, "FileTailer");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+}
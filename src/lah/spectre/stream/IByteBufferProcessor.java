@@ -0,0 +1,23 @@
+package lah.spectre.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Companion of {@link IBufferProcessor} for {@link ByteBuffer}s, which can be direct buffers that are written to
+ * channels without an intermediate copy in the heap. {@link BufferAdapters} converts between the two interfaces.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public interface IByteBufferProcessor {
+
+	/**
+	 * Process the bytes between the position and the limit of the buffer; the buffer is reused once this method
+	 * returns
+	 * 
+	 * @param buffer
+	 * @throws Exception
+	 */
+	void processBuffer(ByteBuffer buffer) throws Exception;
+
+}
@@ -0,0 +1,22 @@
+package lah.spectre.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Companion of {@link IBufferProducer} for {@link ByteBuffer}s. {@link BufferAdapters} converts between the two
+ * interfaces.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public interface IByteBufferProducer {
+
+	/**
+	 * Put bytes into the buffer, starting at its position and advancing it
+	 * 
+	 * @return The number of bytes put in the buffer, should be from {@literal 0} to {@code buffer.remaining()}; or
+	 *         {@literal -1} if there is nothing more to fill in.
+	 */
+	int fillBuffer(ByteBuffer buffer) throws Exception;
+
+}
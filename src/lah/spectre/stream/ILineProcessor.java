@@ -0,0 +1,22 @@
+package lah.spectre.stream;
+
+/**
+ * Interface for line processing classes fed by {@link LineSplitter}
+ * 
+ * @author L.A.H.
+ * 
+ */
+public interface ILineProcessor {
+
+	/**
+	 * Process the line in line[offset..offset+length-1], excluding its terminator. The array is reused once this method
+	 * returns so the bytes must be copied if they are needed afterward.
+	 * 
+	 * @param line
+	 * @param offset
+	 * @param length
+	 * @throws Exception
+	 */
+	void processLine(byte[] line, int offset, int length) throws Exception;
+
+}
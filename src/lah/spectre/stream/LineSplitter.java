@@ -0,0 +1,125 @@
+package lah.spectre.stream;
+
+/**
+ * Implementation of {@link IBufferProcessor} that splits the stream into lines and hands each of them to an
+ * {@link ILineProcessor} as soon as it is terminated. A line lying entirely within a buffer is passed as a slice of
+ * that buffer; only a line split between buffers is copied, into an internal buffer that is reused for all lines.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class LineSplitter implements IBufferProcessor {
+
+	/**
+	 * Number of lines passed to the line processor
+	 */
+	private long line_count;
+
+	private final ILineProcessor line_processor;
+
+	/**
+	 * Beginning of the current line if it started in a previous buffer, in pending[0..pending_length-1]
+	 */
+	private byte[] pending;
+
+	private int pending_length;
+
+	/**
+	 * Whether a carriage return preceding the terminator is removed
+	 */
+	private final boolean strip_cr;
+
+	private final byte terminator;
+
+	/**
+	 * Construct a splitter for lines terminated by either line feed or carriage return followed by line feed
+	 * 
+	 * @param line_processor
+	 */
+	public LineSplitter(ILineProcessor line_processor) {
+		this(line_processor, (byte) '\n', true);
+	}
+
+	/**
+	 * Construct a splitter
+	 * 
+	 * @param line_processor
+	 *            Processor to be fed with the lines
+	 * @param terminator
+	 *            Byte that terminates a line
+	 * @param strip_cr
+	 *            {@literal true} to remove a carriage return right before the terminator
+	 */
+	public LineSplitter(ILineProcessor line_processor, byte terminator, boolean strip_cr) {
+		this.line_processor = line_processor;
+		this.terminator = terminator;
+		this.strip_cr = strip_cr;
+	}
+
+	/**
+	 * Append buffer[start..end-1] to the pending line
+	 */
+	private void append(byte[] buffer, int start, int end) {
+		int length = end - start;
+		if (pending == null || pending.length < pending_length + length) {
+			byte[] expanded = new byte[Math.max(pending_length + length, pending == null ? 128 : 2 * pending.length)];
+			if (pending != null)
+				System.arraycopy(pending, 0, expanded, 0, pending_length);
+			pending = expanded;
+		}
+		System.arraycopy(buffer, start, pending, pending_length, length);
+		pending_length += length;
+	}
+
+	private void emit(byte[] line, int offset, int length) throws Exception {
+		if (strip_cr && length > 0 && line[offset + length - 1] == '\r')
+			length--;
+		line_count++;
+		line_processor.processLine(line, offset, length);
+	}
+
+	/**
+	 * Pass the last line to the line processor if it is not terminated; this should be invoked once the stream ends
+	 * 
+	 * @throws Exception
+	 */
+	public void finish() throws Exception {
+		if (pending_length > 0) {
+			int length = pending_length;
+			pending_length = 0;
+			emit(pending, 0, length);
+		}
+	}
+
+	public long getLineCount() {
+		return line_count;
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) throws Exception {
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			if (buffer[i] != terminator)
+				continue;
+			if (pending_length > 0) {
+				append(buffer, start, i);
+				int length = pending_length;
+				pending_length = 0;
+				emit(pending, 0, length);
+			} else
+				emit(buffer, start, i - start);
+			start = i + 1;
+		}
+		if (start < count)
+			append(buffer, start, count);
+	}
+
+	/**
+	 * Discard the pending unterminated line
+	 */
+	public void reset() {
+		pending_length = 0;
+		line_count = 0;
+	}
+
+}
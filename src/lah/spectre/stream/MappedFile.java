@@ -0,0 +1,297 @@
+package lah.spectre.stream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only memory-mapped view of a file, to read large files without copying them into the heap. As a single mapping
+ * is limited to 2 GB, the file is mapped as a sequence of regions so that files of any size can be read.
+ * 
+ * The content is available as bytes ({@link #get(long)}, {@link #getRegion(int)}), as a decoded string
+ * ({@link #decode(Charset)}), as a {@link CharSequence} for single-byte encodings ({@link #asCharSequence()}) and as
+ * lazily decoded lines ({@link #lines(Charset)}). The mapping stays valid until the instance is garbage collected.
+ * 
+ * A file must not be truncated while it is mapped (reading past its new end raises an {@link InternalError}), and on
+ * some platforms (Windows) it cannot be deleted or renamed until the mapping is collected: mapping suits large files
+ * that are not modified, such as archives or finished logs, rather than files being written.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class MappedFile {
+
+	/**
+	 * Iterator over the lines of the file, decoded one at a time
+	 */
+	private class LineIterator implements Iterator<String> {
+
+		private final Charset charset;
+
+		/**
+		 * Offset of the first byte of the next line
+		 */
+		private long position;
+
+		LineIterator(Charset charset) {
+			this.charset = charset;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return position < size;
+		}
+
+		@Override
+		public String next() {
+			if (position >= size)
+				throw new NoSuchElementException();
+			long end = indexOf((byte) '\n', position);
+			long next_position = (end < 0 ? size : end + 1);
+			if (end < 0)
+				end = size;
+			if (end > position && get(end - 1) == '\r')
+				end--;
+			String line = decode(position, end, charset);
+			position = next_position;
+			return line;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/**
+	 * Default size of the mapped regions
+	 */
+	public static final int DEFAULT_REGION_SIZE = 1 << 30;
+
+	/**
+	 * Size of the regions, all regions but the last are this large
+	 */
+	private final int region_size;
+
+	private final MappedByteBuffer[] regions;
+
+	private final long size;
+
+	/**
+	 * Map a file with the default region size
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedFile(File file) throws IOException {
+		this(file, DEFAULT_REGION_SIZE);
+	}
+
+	/**
+	 * Map a file
+	 * 
+	 * @param file
+	 * @param region_size
+	 *            Size of the regions to map the file in
+	 * @throws IOException
+	 */
+	public MappedFile(File file, int region_size) throws IOException {
+		if (region_size <= 0)
+			throw new IllegalArgumentException("Region size must be positive!");
+		this.region_size = region_size;
+		FileInputStream in_str = new FileInputStream(file);
+		try {
+			FileChannel channel = in_str.getChannel();
+			size = channel.size();
+			regions = new MappedByteBuffer[(int) ((size + region_size - 1) / region_size)];
+			for (int i = 0; i < regions.length; i++) {
+				long offset = (long) i * region_size;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(region_size, size - offset));
+			}
+		} finally {
+			// The mapping remains valid after the channel is closed
+			in_str.close();
+		}
+	}
+
+	/**
+	 * View the content as a {@link CharSequence} of ISO-8859-1 characters without decoding it, for instance to search
+	 * a file in a single-byte (or ASCII-compatible) encoding with a regular expression
+	 * 
+	 * @return
+	 * @throws UnsupportedOperationException
+	 *             if the file is larger than {@link Integer#MAX_VALUE} bytes
+	 */
+	public CharSequence asCharSequence() {
+		if (size > Integer.MAX_VALUE)
+			throw new UnsupportedOperationException("File is too large to be viewed as a CharSequence");
+		return subSequence(0, (int) size);
+	}
+
+	/**
+	 * Decode the whole file into a {@link String}
+	 * 
+	 * @param charset
+	 * @return
+	 */
+	public String decode(Charset charset) {
+		return decode(0, size, charset);
+	}
+
+	/**
+	 * Decode the bytes in [start, end) into a {@link String}
+	 */
+	private String decode(long start, long end, Charset charset) {
+		if (start == end)
+			return "";
+		int first = (int) (start / region_size), last = (int) ((end - 1) / region_size);
+		if (first == last) {
+			// Common case: decode straight from the mapping
+			ByteBuffer slice = regions[first].duplicate();
+			slice.limit((int) (end - (long) first * region_size)).position((int) (start - (long) first * region_size));
+			return charset.decode(slice).toString();
+		}
+		StringAccumulator accumulator = new StringAccumulator(charset,
+				(int) Math.min(end - start, Integer.MAX_VALUE - 8));
+		for (int i = first; i <= last; i++) {
+			ByteBuffer slice = regions[i].duplicate();
+			long offset = (long) i * region_size;
+			if (i == last)
+				slice.limit((int) (end - offset));
+			if (i == first)
+				slice.position((int) (start - offset));
+			accumulator.processBuffer(slice);
+		}
+		accumulator.finish();
+		return accumulator.getResult();
+	}
+
+	/**
+	 * Get the byte at a position
+	 * 
+	 * @param position
+	 * @return
+	 */
+	public byte get(long position) {
+		if (position < 0 || position >= size)
+			throw new IndexOutOfBoundsException();
+		return regions[(int) (position / region_size)].get((int) (position % region_size));
+	}
+
+	/**
+	 * Copy bytes starting at a position into an array
+	 * 
+	 * @param position
+	 *            Position of the first byte to copy
+	 * @param destination
+	 * @param offset
+	 *            Offset in the destination array
+	 * @param length
+	 *            Number of bytes to copy
+	 */
+	public void get(long position, byte[] destination, int offset, int length) {
+		if (position < 0 || length < 0 || position + length > size)
+			throw new IndexOutOfBoundsException();
+		while (length > 0) {
+			ByteBuffer region = regions[(int) (position / region_size)].duplicate();
+			region.position((int) (position % region_size));
+			int count = Math.min(length, region.remaining());
+			region.get(destination, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Get a read-only buffer over one of the mapped regions, positioned at its start
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public ByteBuffer getRegion(int index) {
+		return regions[index].asReadOnlyBuffer();
+	}
+
+	public int getRegionCount() {
+		return regions.length;
+	}
+
+	/**
+	 * Find the first occurrence of a byte at or after a position
+	 * 
+	 * @return The position of the byte or -1 if it does not occur
+	 */
+	private long indexOf(byte b, long from) {
+		for (int i = (int) (from / region_size); i < regions.length; i++) {
+			MappedByteBuffer region = regions[i];
+			long offset = (long) i * region_size;
+			for (int j = (int) Math.max(0, from - offset), limit = region.limit(); j < limit; j++) {
+				if (region.get(j) == b)
+					return offset + j;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Iterate over the lines of the file, each line being decoded only when it is reached; the line terminators
+	 * ({@code \n} or {@code \r\n}) are not included in the lines
+	 * 
+	 * @param charset
+	 *            Encoding of the file, must be ASCII-compatible
+	 * @return
+	 */
+	public Iterable<String> lines(final Charset charset) {
+		return new Iterable<String>() {
+
+			@Override
+			public Iterator<String> iterator() {
+				return new LineIterator(charset);
+			}
+
+		};
+	}
+
+	public long size() {
+		return size;
+	}
+
+	private CharSequence subSequence(final int start, final int end) {
+		return new CharSequence() {
+
+			@Override
+			public char charAt(int index) {
+				if (index < 0 || index >= end - start)
+					throw new IndexOutOfBoundsException();
+				return (char) (get(start + index) & 0xFF);
+			}
+
+			@Override
+			public int length() {
+				return end - start;
+			}
+
+			@Override
+			public CharSequence subSequence(int sub_start, int sub_end) {
+				if (sub_start < 0 || sub_end > end - start || sub_start > sub_end)
+					throw new IndexOutOfBoundsException();
+				return MappedFile.this.subSequence(start + sub_start, start + sub_end);
+			}
+
+			@Override
+			public String toString() {
+				return decode(start, end, Charset.forName("ISO-8859-1"));
+			}
+
+		};
+	}
+
+}
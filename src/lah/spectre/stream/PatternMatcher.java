@@ -0,0 +1,248 @@
+package lah.spectre.stream;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementation of {@link IBufferProcessor} that searches a stream for several byte patterns at once (Aho-Corasick
+ * automaton). Matches are found across buffer boundaries, without building any string.
+ * 
+ * When the {@link Listener} asks for it, the matcher aborts the stream by raising a {@link MatchException} from
+ * {@link #processBuffer(byte[], int)}; {@code TimedShell.fork} and {@code TimedProcess} terminate the external process
+ * when its output processor fails, so this is the way to kill a command as soon as a failure marker shows up in its
+ * output.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class PatternMatcher implements IBufferProcessor {
+
+	/**
+	 * Interface for objects notified of matches
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static interface Listener {
+
+		/**
+		 * Invoked when a pattern is found
+		 * 
+		 * @param pattern_index
+		 *            Index of the pattern found
+		 * @param end_offset
+		 *            Offset in the stream right after the last byte of the match
+		 * @return {@literal true} to abort the stream
+		 * @throws Exception
+		 */
+		boolean onMatch(int pattern_index, long end_offset) throws Exception;
+
+	}
+
+	/**
+	 * Exception raised to abort the stream after a match
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static class MatchException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long end_offset;
+
+		private final int pattern_index;
+
+		public MatchException(int pattern_index, long end_offset) {
+			super("Pattern " + pattern_index + " matched at offset " + end_offset);
+			this.pattern_index = pattern_index;
+			this.end_offset = end_offset;
+		}
+
+		public long getEndOffset() {
+			return end_offset;
+		}
+
+		public int getPatternIndex() {
+			return pattern_index;
+		}
+
+	}
+
+	private static byte[][] encode(String[] patterns, Charset charset) {
+		byte[][] result = new byte[patterns.length][];
+		for (int i = 0; i < patterns.length; i++)
+			result[i] = patterns[i].getBytes(charset);
+		return result;
+	}
+
+	private static int[] newNode() {
+		int[] node = new int[256];
+		for (int b = 0; b < 256; b++)
+			node[b] = -1;
+		return node;
+	}
+
+	/**
+	 * Number of bytes scanned
+	 */
+	private long count;
+
+	private final IBufferProcessor downstream;
+
+	private final Listener listener;
+
+	/**
+	 * Number of matches found
+	 */
+	private long match_count;
+
+	/**
+	 * Indices of the patterns ending at each state (including those reached through failure links), {@literal null}
+	 * if there is none
+	 */
+	private final int[][] outputs;
+
+	private int state;
+
+	/**
+	 * Transition function: the state after reading byte b at state s is transitions[s * 256 + (b & 0xFF)]
+	 */
+	private final int[] transitions;
+
+	/**
+	 * Construct a matcher
+	 * 
+	 * @param patterns
+	 *            Non-empty patterns to search for
+	 * @param listener
+	 *            Listener to notify of the matches, {@literal null} to only count them
+	 * @param downstream
+	 *            Processor to forward every buffer to before it is scanned, can be {@literal null}
+	 */
+	public PatternMatcher(byte[][] patterns, Listener listener, IBufferProcessor downstream) {
+		this.listener = listener;
+		this.downstream = downstream;
+
+		// Build the trie, the transitions are -1 where undefined
+		List<int[]> trie = new ArrayList<int[]>();
+		List<List<Integer>> trie_outputs = new ArrayList<List<Integer>>();
+		trie.add(newNode());
+		trie_outputs.add(null);
+		for (int p = 0; p < patterns.length; p++) {
+			if (patterns[p].length == 0)
+				throw new IllegalArgumentException("Empty pattern!");
+			int s = 0;
+			for (byte b : patterns[p]) {
+				int next = trie.get(s)[b & 0xFF];
+				if (next < 0) {
+					next = trie.size();
+					trie.get(s)[b & 0xFF] = next;
+					trie.add(newNode());
+					trie_outputs.add(null);
+				}
+				s = next;
+			}
+			if (trie_outputs.get(s) == null)
+				trie_outputs.set(s, new ArrayList<Integer>());
+			trie_outputs.get(s).add(p);
+		}
+
+		// Complete the transitions breadth-first along the failure links
+		int state_count = trie.size();
+		transitions = new int[state_count * 256];
+		int[] failure = new int[state_count];
+		int[] queue = new int[state_count];
+		int head = 0, tail = 0;
+		for (int b = 0; b < 256; b++) {
+			int next = trie.get(0)[b];
+			if (next < 0) {
+				transitions[b] = 0;
+			} else {
+				transitions[b] = next;
+				failure[next] = 0;
+				queue[tail++] = next;
+			}
+		}
+		while (head < tail) {
+			int s = queue[head++];
+			List<Integer> failure_outputs = trie_outputs.get(failure[s]);
+			if (failure_outputs != null) {
+				if (trie_outputs.get(s) == null)
+					trie_outputs.set(s, new ArrayList<Integer>());
+				trie_outputs.get(s).addAll(failure_outputs);
+			}
+			for (int b = 0; b < 256; b++) {
+				int next = trie.get(s)[b];
+				if (next < 0) {
+					transitions[s * 256 + b] = transitions[failure[s] * 256 + b];
+				} else {
+					transitions[s * 256 + b] = next;
+					failure[next] = transitions[failure[s] * 256 + b];
+					queue[tail++] = next;
+				}
+			}
+		}
+		outputs = new int[state_count][];
+		for (int s = 0; s < state_count; s++) {
+			List<Integer> state_outputs = trie_outputs.get(s);
+			if (state_outputs == null)
+				continue;
+			outputs[s] = new int[state_outputs.size()];
+			for (int i = 0; i < outputs[s].length; i++)
+				outputs[s][i] = state_outputs.get(i);
+		}
+	}
+
+	/**
+	 * Construct a matcher for string patterns encoded with the platform default {@link Charset}
+	 * 
+	 * @param patterns
+	 *            Non-empty patterns to search for
+	 * @param listener
+	 *            Listener to notify of the matches, {@literal null} to only count them
+	 * @param downstream
+	 *            Processor to forward every buffer to before it is scanned, can be {@literal null}
+	 */
+	public PatternMatcher(String[] patterns, Listener listener, IBufferProcessor downstream) {
+		this(encode(patterns, Charset.defaultCharset()), listener, downstream);
+	}
+
+	public long getMatchCount() {
+		return match_count;
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) throws Exception {
+		if (downstream != null)
+			downstream.processBuffer(buffer, count);
+		int s = state;
+		for (int i = 0; i < count; i++) {
+			s = transitions[(s << 8) | (buffer[i] & 0xFF)];
+			if (outputs[s] == null)
+				continue;
+			long end_offset = this.count + i + 1;
+			for (int pattern_index : outputs[s]) {
+				match_count++;
+				if (listener != null && listener.onMatch(pattern_index, end_offset)) {
+					state = s;
+					this.count = end_offset;
+					throw new MatchException(pattern_index, end_offset);
+				}
+			}
+		}
+		state = s;
+		this.count += count;
+	}
+
+	/**
+	 * Restart matching as if at the beginning of a new stream
+	 */
+	public void reset() {
+		state = 0;
+		count = 0;
+		match_count = 0;
+	}
+
+}
@@ -0,0 +1,189 @@
+package lah.spectre.stream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implementation of {@link IBufferProcessor} that accumulates the buffers in memory up to a threshold and transparently
+ * continues in a temporary file once the threshold is exceeded. This sits in between {@link StringAccumulator} (all in
+ * heap) and {@link StreamRedirector} (all to file) to capture the full output of large commands without heap pressure.
+ * 
+ * The content is read back either as an {@link InputStream} or as a read-only (memory-mapped once spilled)
+ * {@link ByteBuffer}, neither of which copies the content back into the heap. The temporary file is deleted on
+ * {@link #close()}.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class SpillingAccumulator implements IBufferProcessor, Closeable {
+
+	/**
+	 * Size of the write buffer of the temporary file
+	 */
+	private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Directory to create the temporary file in, {@literal null} for the default temporary directory
+	 */
+	private final File directory;
+
+	/**
+	 * In-memory content in memory[0..size-1] before spilling
+	 */
+	private byte[] memory;
+
+	/**
+	 * Total number of bytes accumulated
+	 */
+	private long size;
+
+	private File spill_file;
+
+	private OutputStream spill_stream;
+
+	/**
+	 * Maximum number of bytes kept in memory
+	 */
+	private final int threshold;
+
+	/**
+	 * Construct an accumulator spilling to the default temporary directory
+	 * 
+	 * @param threshold
+	 *            Maximum number of bytes to keep in memory
+	 */
+	public SpillingAccumulator(int threshold) {
+		this(threshold, null);
+	}
+
+	/**
+	 * Construct an accumulator
+	 * 
+	 * @param threshold
+	 *            Maximum number of bytes to keep in memory
+	 * @param directory
+	 *            Directory to create the temporary file in, {@literal null} for the default temporary directory
+	 */
+	public SpillingAccumulator(int threshold, File directory) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("Negative threshold!");
+		this.threshold = threshold;
+		this.directory = directory;
+	}
+
+	/**
+	 * Release the memory and delete the temporary file if there is one; the accumulator is empty afterward
+	 */
+	@Override
+	public void close() throws IOException {
+		memory = null;
+		size = 0;
+		try {
+			if (spill_stream != null)
+				spill_stream.close();
+		} finally {
+			spill_stream = null;
+			if (spill_file != null)
+				spill_file.delete();
+			spill_file = null;
+		}
+	}
+
+	/**
+	 * Get the accumulated content as a read-only {@link ByteBuffer}; once spilled, the buffer is a memory mapping of
+	 * the temporary file which is only valid until {@link #close()}
+	 * 
+	 * @return
+	 * @throws IOException
+	 *             if the temporary file cannot be mapped, in particular if it is larger than 2GB
+	 */
+	public ByteBuffer getBuffer() throws IOException {
+		if (spill_file == null)
+			return ByteBuffer.wrap(memory == null ? new byte[0] : memory, 0, (int) size).slice().asReadOnlyBuffer();
+		// a single mapping cannot exceed 2GB, map() would fail with an IllegalArgumentException
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Content of " + size + " bytes is too large to be mapped, read it as a stream.");
+		spill_stream.flush();
+		RandomAccessFile file = new RandomAccessFile(spill_file, "r");
+		try {
+			// the mapping remains valid after the file is closed
+			return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Get the temporary file holding the content
+	 * 
+	 * @return The file or {@literal null} if the content is still in memory
+	 * @throws IOException
+	 */
+	public File getFile() throws IOException {
+		if (spill_stream != null)
+			spill_stream.flush();
+		return spill_file;
+	}
+
+	/**
+	 * Get a stream to read the content accumulated so far
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (spill_file == null)
+			return new ByteArrayInputStream(memory == null ? new byte[0] : memory, 0, (int) size);
+		spill_stream.flush();
+		return new FileInputStream(spill_file);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public boolean isSpilled() {
+		return spill_file != null;
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) throws Exception {
+		if (spill_stream == null && size + count <= threshold) {
+			if (memory == null || memory.length < size + count) {
+				byte[] expanded = new byte[(int) Math.min(threshold,
+						Math.max(size + count, memory == null ? 4096 : 2L * memory.length))];
+				if (memory != null)
+					System.arraycopy(memory, 0, expanded, 0, (int) size);
+				memory = expanded;
+			}
+			System.arraycopy(buffer, 0, memory, (int) size, count);
+		} else {
+			if (spill_stream == null)
+				spill();
+			spill_stream.write(buffer, 0, count);
+		}
+		size += count;
+	}
+
+	/**
+	 * Move the in-memory content to a new temporary file
+	 */
+	private void spill() throws IOException {
+		spill_file = File.createTempFile("spectre", ".spill", directory);
+		spill_stream = new BufferedOutputStream(new FileOutputStream(spill_file), SPILL_BUFFER_SIZE);
+		if (memory != null)
+			spill_stream.write(memory, 0, (int) size);
+		memory = null;
+	}
+
+}
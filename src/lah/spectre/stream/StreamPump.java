@@ -0,0 +1,385 @@
+package lah.spectre.stream;
+
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lah.spectre.interfaces.IExceptionHandler;
+import lah.spectre.interfaces.IResultListener;
+
+/**
+ * Multiplexed pump draining many {@link InputStream}s into their {@link IBufferProcessor}s with a small, fixed number
+ * of worker threads instead of one thread per stream.
+ * 
+ * Since plain {@link InputStream}s cannot be selected, a worker only reads what {@link InputStream#available()}
+ * reports and puts idle streams back with an increasing delay. A blocking read (to detect the end of the stream) is
+ * only issued when the stream is expected to end or deliver soon, that is when the {@link Process} producing the stream
+ * has exited or, for streams without a known source, when the stream stays idle for a while; and in any case only if
+ * at least one other worker is left to serve the remaining streams, since a background job of the exited process may
+ * keep the stream open indefinitely. A stream whose blocking reads deliver bytes that {@link InputStream#available()}
+ * does not report (many wrappers and decoders report nothing) is read with blocking reads from then on.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class StreamPump {
+
+	/**
+	 * Handle on a stream submitted to the pump
+	 * 
+	 * @author L.A.H.
+	 * 
+	 */
+	public static final class Drain implements Delayed {
+
+		/**
+		 * Whether the stream delivers bytes that {@link InputStream#available()} does not report, so that polling it
+		 * is useless
+		 */
+		private boolean blocking;
+
+		private volatile boolean cancelled;
+
+		private boolean done;
+
+		private Exception exception;
+
+		private final IExceptionHandler exception_handler;
+
+		private int idle_polls;
+
+		private final IBufferProcessor processor;
+
+		private final IResultListener<Void> result_listener;
+
+		private final Process source;
+
+		/**
+		 * Activity on the stream, for the reads which deliver bytes (or the end of the stream)
+		 */
+		private final StreamStatistics statistics = StreamStatistics.forStream(null);
+
+		private final InputStream stream;
+
+		private long wake_time;
+
+		Drain(InputStream stream, IBufferProcessor processor, Process source, IExceptionHandler exception_handler,
+				IResultListener<Void> result_listener) {
+			this.stream = stream;
+			this.processor = processor;
+			this.source = source;
+			this.exception_handler = exception_handler;
+			this.result_listener = result_listener;
+		}
+
+		/**
+		 * Wait until the stream is fully drained, fails or is cancelled
+		 * 
+		 * @throws InterruptedException
+		 */
+		public synchronized void await() throws InterruptedException {
+			while (!done)
+				wait();
+		}
+
+		/**
+		 * Wait at most a specified amount of time for the stream to be fully drained
+		 * 
+		 * @param timeout
+		 *            Maximum waiting time in milliseconds
+		 * @return {@literal true} if the drain is done
+		 * @throws InterruptedException
+		 */
+		public synchronized boolean await(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			while (!done && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return done;
+		}
+
+		/**
+		 * Stop draining the stream, which then completes with a {@link CancellationException} instead of notifying the
+		 * result listener; note that a worker which is already blocked reading the stream only notices the
+		 * cancellation once the read returns
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = wake_time - ((Drain) other).wake_time;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+
+		void finish(Exception e) {
+			synchronized (this) {
+				if (done)
+					return;
+				exception = e;
+				done = true;
+				notifyAll();
+			}
+			statistics.finish();
+			if (e == null) {
+				if (result_listener != null)
+					result_listener.onResultObtained(null);
+			} else if (exception_handler != null)
+				exception_handler.onException(e);
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(wake_time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Get the exception raised while reading or processing the stream
+		 * 
+		 * @return The exception or {@literal null} if the drain succeeds or is not done yet
+		 */
+		public synchronized Exception getException() {
+			return exception;
+		}
+
+		/**
+		 * Get the activity recorded on the stream, which is added to {@link StreamStatistics#getAggregate()} once the
+		 * drain is done
+		 * 
+		 * @return
+		 */
+		public StreamStatistics getStatistics() {
+			return statistics;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+	}
+
+	private class Worker extends Thread {
+
+		Worker(int index) {
+			super("StreamPump-" + index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = BufferPool.getDefault().acquire();
+			try {
+				while (!isInterrupted()) {
+					Drain drain = drains.take();
+					try {
+						pump(drain, buffer);
+					} catch (Throwable t) {
+						// A listener or handler of the drain failed: the worker still serves the other streams
+					}
+				}
+			} catch (InterruptedException e) {
+				// Pump is shut down
+			} finally {
+				BufferPool.getDefault().release(buffer);
+			}
+		}
+
+	}
+
+	/**
+	 * Number of consecutive idle polls after which a worker may block on a stream without known source
+	 */
+	private static final int BLOCK_AFTER_IDLE_POLLS = 4;
+
+	private static StreamPump default_pump;
+
+	/**
+	 * Maximum delay (in milliseconds) before an idle stream is polled again
+	 */
+	private static final int MAX_IDLE_DELAY = 16;
+
+	/**
+	 * Get the shared pump whose number of workers is the number of available processors (at least two); this pump is
+	 * created on first use and runs on daemon threads
+	 * 
+	 * @return The shared pump
+	 */
+	public static synchronized StreamPump getDefault() {
+		if (default_pump == null)
+			default_pump = new StreamPump(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		return default_pump;
+	}
+
+	/**
+	 * Number of workers currently blocked in a read, which must leave one worker to poll the other streams
+	 */
+	private final AtomicInteger blocked_workers = new AtomicInteger();
+
+	/**
+	 * Streams to drain ordered by the time they should be polled next
+	 */
+	private final DelayQueue<Drain> drains = new DelayQueue<Drain>();
+
+	private volatile boolean is_shutdown;
+
+	private final Worker[] workers;
+
+	/**
+	 * Construct and start a pump with a number of worker threads
+	 * 
+	 * @param worker_count
+	 *            Number of threads, should be at least two so that a worker can block on a stream while another
+	 *            serves the others
+	 */
+	public StreamPump(int worker_count) {
+		if (worker_count <= 0)
+			throw new IllegalArgumentException("Stream pump needs at least one worker!");
+		workers = new Worker[worker_count];
+		for (int i = 0; i < worker_count; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Decide whether a blocking read on an idle stream is safe; a successful call reserves one of the blocking workers
+	 * which must be given back once the read returns
+	 */
+	private boolean mayBlock(Drain drain) {
+		if (drain.source != null) {
+			try {
+				drain.source.exitValue();
+			} catch (IllegalThreadStateException e) {
+				return false;
+			}
+		} else if (!drain.blocking && drain.idle_polls < BLOCK_AFTER_IDLE_POLLS) {
+			return false;
+		}
+		while (true) {
+			int blocked = blocked_workers.get();
+			if (blocked >= workers.length - 1 && workers.length > 1)
+				return false;
+			if (blocked_workers.compareAndSet(blocked, blocked + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Read a chunk of a stream and put it back for later polling unless the stream is finished; any failure, including
+	 * an {@link Error}, finishes the drain (wrapped in an {@link ExecutionException} if it is not an {@link Exception})
+	 */
+	private void pump(Drain drain, byte[] buffer) {
+		if (is_shutdown) {
+			drain.finish(new InterruptedException("Stream pump is shut down."));
+			return;
+		}
+		if (drain.cancelled) {
+			drain.finish(new CancellationException("Stream drain is cancelled."));
+			return;
+		}
+		try {
+			long time = drain.statistics.start();
+			int available = drain.stream.available();
+			int count;
+			if (available > 0) {
+				count = drain.stream.read(buffer, 0, Math.min(available, buffer.length));
+				drain.blocking = false;
+			} else if (mayBlock(drain)) {
+				try {
+					count = drain.stream.read(buffer);
+				} finally {
+					blocked_workers.decrementAndGet();
+				}
+				// The next bytes are not reported either: block again instead of polling through the backoff
+				drain.blocking = count > 0;
+			} else {
+				drain.idle_polls++;
+				drain.wake_time = System.currentTimeMillis()
+						+ Math.min(1 << Math.min(drain.idle_polls, 30), MAX_IDLE_DELAY);
+				drains.add(drain);
+				return;
+			}
+			time = drain.statistics.recordRead(time, count);
+			if (count == -1) {
+				drain.finish(null);
+				return;
+			}
+			if (count > 0 && drain.processor != null)
+				drain.processor.processBuffer(buffer, count);
+			drain.statistics.recordProcessing(time);
+			drain.idle_polls = 0;
+			drain.wake_time = System.currentTimeMillis();
+			drains.add(drain);
+		} catch (Throwable t) {
+			// Errors of the processor (for instance, running out of memory) end the drain, not the worker
+			drain.finish(t instanceof Exception ? (Exception) t : new ExecutionException(t));
+		}
+	}
+
+	/**
+	 * Stop all workers; streams still being drained complete with an {@link InterruptedException}
+	 */
+	public void shutdown() {
+		is_shutdown = true;
+		for (Worker worker : workers)
+			worker.interrupt();
+		Drain drain;
+		while ((drain = drains.poll()) != null)
+			drain.finish(new InterruptedException("Stream pump is shut down."));
+		synchronized (StreamPump.class) {
+			if (default_pump == this)
+				default_pump = null;
+		}
+	}
+
+	/**
+	 * Submit a stream to drain; note that the stream is not closed at the end of the processing
+	 * 
+	 * @param stream
+	 *            Stream to drain
+	 * @param processor
+	 *            Processor to consume the stream, {@literal null} to discard the content
+	 * @return Handle to wait for the stream to be drained
+	 */
+	public Drain submit(InputStream stream, IBufferProcessor processor) {
+		return submit(stream, processor, null, null, null);
+	}
+
+	/**
+	 * Submit a stream to drain
+	 * 
+	 * @param stream
+	 *            Stream to drain
+	 * @param processor
+	 *            Processor to consume the stream, {@literal null} to discard the content
+	 * @param source
+	 *            The process generating the stream (for instance, the standard output) if applicable; this lets the
+	 *            pump detect the end of the stream without blocking a worker
+	 * @param exception_handler
+	 *            Handler to notify (on the worker thread) if reading or processing fails, can be {@literal null}
+	 * @param result_listener
+	 *            Listener to notify (on the worker thread) when the stream is fully drained, can be {@literal null}
+	 * @return Handle to wait for the stream to be drained
+	 */
+	public Drain submit(InputStream stream, IBufferProcessor processor, Process source,
+			IExceptionHandler exception_handler, IResultListener<Void> result_listener) {
+		if (is_shutdown)
+			throw new IllegalStateException("Stream pump is shut down!");
+		Drain drain = new Drain(stream, processor, source, exception_handler, result_listener);
+		drain.wake_time = System.currentTimeMillis();
+		drains.add(drain);
+		return drain;
+	}
+
+}
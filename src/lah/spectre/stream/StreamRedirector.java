@@ -3,15 +3,20 @@ package lah.spectre.stream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
- * Process a byte[] buffer by redirect it to an output stream
+ * Process a byte[] buffer (or a {@link ByteBuffer}) by redirect it to an output stream or a channel; a
+ * {@link ByteBuffer} is written directly to the channel, without copy, if there is one
  * 
  * @author L.A.H.
  * 
  */
-public class StreamRedirector implements IBufferProcessor {
+public class StreamRedirector implements IBufferProcessor, IByteBufferProcessor {
 
 	/**
 	 * An {@link IBufferProcessor} that simply ignore the buffer
@@ -35,11 +40,28 @@ public class StreamRedirector implements IBufferProcessor {
 
 	};
 
+	/**
+	 * Channel to redirect the buffer to
+	 */
+	private WritableByteChannel out_channel;
+
+	/**
+	 * File the buffer is redirected to, if constructed with a file
+	 */
+	private File out_file;
+
 	/**
 	 * Output stream to redirect the buffer to
 	 */
 	private OutputStream out_stream;
 
+	/**
+	 * The last byte array wrapped and its wrapper to write arrays to the channel
+	 */
+	private byte[] wrapped_array;
+
+	private ByteBuffer wrapper;
+
 	/**
 	 * Construct an instance that redirect the result to a file
 	 * 
@@ -49,6 +71,8 @@ public class StreamRedirector implements IBufferProcessor {
 	 */
 	public StreamRedirector(File output_file, boolean append) throws FileNotFoundException {
 		this(new FileOutputStream(output_file, append));
+		out_channel = ((FileOutputStream) out_stream).getChannel();
+		out_file = output_file;
 	}
 
 	/**
@@ -60,11 +84,76 @@ public class StreamRedirector implements IBufferProcessor {
 		out_stream = output_stream;
 	}
 
+	/**
+	 * Construct an instance that redirect buffer to a specified channel
+	 * 
+	 * @param output_channel
+	 */
+	public StreamRedirector(WritableByteChannel output_channel) {
+		out_channel = output_channel;
+	}
+
+	/**
+	 * Get the file the buffer is redirected to; an external process whose output goes to this redirector can write
+	 * to the file directly instead (see {@link ProcessBuilder.Redirect#appendTo(File)}), after which
+	 * {@link #moveToEnd()} must be invoked
+	 * 
+	 * @return The file or {@literal null} if this redirector was not constructed with a file
+	 */
+	public File getFile() {
+		return out_file;
+	}
+
+	/**
+	 * Move the position in the file to its end, so that the next buffers follow the bytes appended to the file by
+	 * other means
+	 * 
+	 * @throws IOException
+	 */
+	public void moveToEnd() throws IOException {
+		if (out_file != null) {
+			FileChannel channel = (FileChannel) out_channel;
+			channel.position(channel.size());
+		}
+	}
+
 	@Override
 	public void processBuffer(byte[] buffer, int count) throws Exception {
 		if (out_stream != null) {
 			out_stream.write(buffer, 0, count);
 			out_stream.flush();
+		} else if (out_channel != null) {
+			if (buffer != wrapped_array) {
+				wrapped_array = buffer;
+				wrapper = ByteBuffer.wrap(buffer);
+			}
+			wrapper.limit(count).position(0);
+			processBuffer(wrapper);
+		}
+	}
+
+	@Override
+	public void processBuffer(ByteBuffer buffer) throws Exception {
+		if (out_channel != null) {
+			while (buffer.hasRemaining())
+				out_channel.write(buffer);
+		} else if (out_stream != null) {
+			if (buffer.hasArray()) {
+				out_stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.limit());
+			} else {
+				byte[] chunk = BufferPool.getDefault().acquire();
+				try {
+					while (buffer.hasRemaining()) {
+						int count = Math.min(chunk.length, buffer.remaining());
+						buffer.get(chunk, 0, count);
+						out_stream.write(chunk, 0, count);
+					}
+				} finally {
+					BufferPool.getDefault().release(chunk);
+				}
+			}
+			out_stream.flush();
 		}
 	}
 
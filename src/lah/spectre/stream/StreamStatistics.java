@@ -0,0 +1,213 @@
+package lah.spectre.stream;
+
+/**
+ * Counters of the activity on a stream: bytes and reads, time spent blocked reading the stream and time spent in the
+ * processor. They tell whether a slow job is slow because its process does not write (long reads), or because the
+ * processor does not keep up (long processing).
+ * 
+ * An instance records a single stream and is updated by the thread reading it only; other threads may read the
+ * counters at any time. Each stream adds its counters to the aggregate ({@link #getAggregate()}) when it ends.
+ * Recording costs two {@link System#nanoTime()} calls per read and can be turned off with
+ * {@link #setEnabled(boolean)}, in which case no statistics are allocated for the streams read.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class StreamStatistics {
+
+	private static final StreamStatistics aggregate = new StreamStatistics("aggregate");
+
+	private static volatile boolean enabled = true;
+
+	/**
+	 * Statistics recording nothing, standing for the statistics of the streams read while the recording is off
+	 */
+	static final StreamStatistics NONE = new StreamStatistics(null);
+
+	/**
+	 * Get new statistics to record a stream in, without allocating any while the recording is off
+	 * 
+	 * @param name
+	 *            Name of the stream, can be {@literal null}
+	 * @return The new statistics or {@link #NONE} if the recording is off
+	 */
+	static StreamStatistics forNamedStream(String name) {
+		return enabled ? new StreamStatistics(name) : NONE;
+	}
+
+	/**
+	 * Get the statistics to record a stream in, without allocating any while the recording is off
+	 * 
+	 * @param statistics
+	 *            Statistics given by the caller, can be {@literal null}
+	 * @return The given statistics if any, otherwise new statistics or {@link #NONE} if the recording is off
+	 */
+	static StreamStatistics forStream(StreamStatistics statistics) {
+		return statistics != null ? statistics : forNamedStream(null);
+	}
+
+	/**
+	 * Get the statistics summed over all streams that have ended
+	 * 
+	 * @return
+	 */
+	public static StreamStatistics getAggregate() {
+		return aggregate;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turn the recording on or off for all streams
+	 * 
+	 * @param enabled
+	 */
+	public static void setEnabled(boolean enabled) {
+		StreamStatistics.enabled = enabled;
+	}
+
+	private volatile long bytes, reads, read_time, processing_time, streams;
+
+	private final String name;
+
+	/**
+	 * Construct statistics for a stream
+	 * 
+	 * @param name
+	 *            Name to identify the stream, can be {@literal null}
+	 */
+	public StreamStatistics(String name) {
+		this.name = name;
+	}
+
+	private synchronized void add(StreamStatistics statistics) {
+		bytes += statistics.bytes;
+		reads += statistics.reads;
+		read_time += statistics.read_time;
+		processing_time += statistics.processing_time;
+		streams++;
+	}
+
+	/**
+	 * Record the end of the stream, adding its counters to the aggregate
+	 */
+	public void finish() {
+		if (enabled && this != NONE)
+			aggregate.add(this);
+	}
+
+	/**
+	 * Get the number of bytes read
+	 * 
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the time spent in the processor (or writing the output, for a pipe or a supplied stream)
+	 * 
+	 * @return Time in nanoseconds
+	 */
+	public long getProcessingTime() {
+		return processing_time;
+	}
+
+	/**
+	 * Get the number of reads, including the last one reaching the end of the stream
+	 * 
+	 * @return
+	 */
+	public long getReadCount() {
+		return reads;
+	}
+
+	/**
+	 * Get the time spent blocked reading the stream (or producing the bytes, for a supplied stream)
+	 * 
+	 * @return Time in nanoseconds
+	 */
+	public long getReadTime() {
+		return read_time;
+	}
+
+	/**
+	 * Get the number of streams summed up, for the aggregate
+	 * 
+	 * @return
+	 */
+	public long getStreamCount() {
+		return streams;
+	}
+
+	/**
+	 * Record the processing of the bytes of the last read
+	 * 
+	 * @param start
+	 *            Time returned by the previous recording, 0 if unknown
+	 * @return Time to pass to the next recording
+	 */
+	public long recordProcessing(long start) {
+		if (!enabled || this == NONE)
+			return 0;
+		long now = System.nanoTime();
+		if (start != 0)
+			processing_time += now - start;
+		return now;
+	}
+
+	/**
+	 * Record a read
+	 * 
+	 * @param start
+	 *            Time returned by the previous recording or by {@link #start()}, 0 if unknown
+	 * @param count
+	 *            Number of bytes read, -1 at the end of the stream
+	 * @return Time to pass to the next recording
+	 */
+	public long recordRead(long start, int count) {
+		if (!enabled || this == NONE)
+			return 0;
+		long now = System.nanoTime();
+		if (start != 0)
+			read_time += now - start;
+		reads++;
+		if (count > 0)
+			bytes += count;
+		return now;
+	}
+
+	/**
+	 * Reset all counters
+	 */
+	public synchronized void reset() {
+		bytes = 0;
+		reads = 0;
+		read_time = 0;
+		processing_time = 0;
+		streams = 0;
+	}
+
+	/**
+	 * Record the start of the stream
+	 * 
+	 * @return Time to pass to the first recording
+	 */
+	public long start() {
+		return enabled && this != NONE ? System.nanoTime() : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamStatistics[" + (name == null ? "" : name + ", ") + "bytes=" + bytes + ", reads=" + reads
+				+ ", read_ms=" + read_time / 1000000 + ", processing_ms=" + processing_time / 1000000 + "]";
+	}
+
+}
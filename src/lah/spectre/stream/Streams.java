@@ -9,8 +9,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
-import lah.spectre.BuildConfig;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Various static (Input|Output)Stream utilities
@@ -20,6 +26,11 @@ import lah.spectre.BuildConfig;
  */
 public class Streams {
 
+	/**
+	 * Maximum number of bytes to move in a single channel transfer
+	 */
+	private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
 	/**
 	 * Close {@link InputStream} while ignoring any exception raised
 	 * 
@@ -46,6 +57,96 @@ public class Streams {
 		}
 	}
 
+	/**
+	 * Copy a file using the kernel copy path ({@link FileChannel#transferTo}), overwriting the target if it exists
+	 * 
+	 * @param source
+	 *            File to copy
+	 * @param target
+	 *            Destination file
+	 * @return Number of bytes copied
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted, in which case the partially copied target is deleted
+	 */
+	public static long copyFile(File source, File target) throws IOException, InterruptedException {
+		FileInputStream in_str = new FileInputStream(source);
+		try {
+			FileOutputStream out_str = new FileOutputStream(target);
+			try {
+				return transfer(in_str.getChannel(), out_str.getChannel());
+			} catch (InterruptedException e) {
+				target.delete();
+				throw e;
+			} finally {
+				out_str.close();
+			}
+		} finally {
+			in_str.close();
+		}
+	}
+
+	/**
+	 * Copy a file while computing its digest, overwriting the target if it exists; the target is deleted if the digest
+	 * does not match the expected one or the copy is interrupted
+	 * 
+	 * @param source
+	 *            File to copy
+	 * @param target
+	 *            Destination file
+	 * @param algorithm
+	 *            Name of the digest algorithm, see {@link DigestingProcessor}
+	 * @param expected_digest
+	 *            Expected digest in hexadecimal, {@literal null} to accept any digest
+	 * @return The digest of the copied bytes in hexadecimal
+	 * @throws IOException
+	 *             if the copy fails, in particular {@link DigestingProcessor.MismatchException} if the digest does not
+	 *             match
+	 * @throws InterruptedException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static String copyFile(File source, File target, String algorithm, String expected_digest)
+			throws IOException, InterruptedException, NoSuchAlgorithmException {
+		FileInputStream in_str = new FileInputStream(source);
+		try {
+			return streamToFile(in_str, target, true, false, algorithm, expected_digest);
+		} finally {
+			in_str.close();
+		}
+	}
+
+	/**
+	 * Get the channel underlying an {@link InputStream} if there is one
+	 * 
+	 * @param input_stream
+	 * @return The channel to read from in place of the stream or {@literal null} if the stream is not channel-capable
+	 */
+	public static ReadableByteChannel getChannel(InputStream input_stream) {
+		if (input_stream instanceof FileInputStream)
+			return ((FileInputStream) input_stream).getChannel();
+		if (input_stream instanceof ReadableByteChannel)
+			return (ReadableByteChannel) input_stream;
+		return null;
+	}
+
+	/**
+	 * Pipe a channel into another channel through a pooled direct buffer (or by a kernel transfer if either channel is
+	 * a {@link FileChannel}), so that the bytes never go through the heap. The caller is in charge of time out this
+	 * method to account for blocking input.
+	 * 
+	 * @param input_channel
+	 *            Channel to read from, must be in blocking mode
+	 * @param output_channel
+	 *            Channel to write to
+	 * @return Number of bytes piped
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static long pipeChannel(ReadableByteChannel input_channel, WritableByteChannel output_channel)
+			throws IOException, InterruptedException {
+		return transfer(input_channel, output_channel);
+	}
+
 	/**
 	 * Pipe an input stream directly into an output stream; this is useful for various I/O purposes. The caller is in
 	 * charge of time out this method to account for blocking input.
@@ -59,18 +160,119 @@ public class Streams {
 	 */
 	public static void pipeIOStream(InputStream input_stream, OutputStream output_stream) throws IOException,
 			InterruptedException {
+		pipeIOStream(input_stream, output_stream, true);
+	}
+
+	/**
+	 * Pipe an input stream directly into an output stream, optionally without flushing the output stream after each
+	 * chunk; in that case, the caller is in charge of flushing (or closing) the output stream.
+	 * 
+	 * @param input_stream
+	 *            {@link InputStream} to take from
+	 * @param output_stream
+	 *            {@link OutputStream} to write to
+	 * @param flush_each_chunk
+	 *            {@literal true} to flush the output stream after each chunk
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void pipeIOStream(InputStream input_stream, OutputStream output_stream, boolean flush_each_chunk)
+			throws IOException, InterruptedException {
+		pipeIOStream(input_stream, output_stream, flush_each_chunk, BufferSizePolicy.DEFAULT);
+	}
+
+	/**
+	 * Pipe an input stream directly into an output stream with buffers sized by a policy
+	 * 
+	 * @param input_stream
+	 *            {@link InputStream} to take from
+	 * @param output_stream
+	 *            {@link OutputStream} to write to
+	 * @param flush_each_chunk
+	 *            {@literal true} to flush the output stream after each chunk
+	 * @param buffer_size_policy
+	 *            Policy to size the buffers
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void pipeIOStream(InputStream input_stream, OutputStream output_stream, boolean flush_each_chunk,
+			BufferSizePolicy buffer_size_policy) throws IOException, InterruptedException {
+		pipeIOStream(input_stream, output_stream, flush_each_chunk, buffer_size_policy, null);
+	}
+
+	/**
+	 * Pipe an input stream directly into an output stream with buffers sized by a policy, recording the activity
+	 * 
+	 * @param input_stream
+	 *            {@link InputStream} to take from
+	 * @param output_stream
+	 *            {@link OutputStream} to write to
+	 * @param flush_each_chunk
+	 *            {@literal true} to flush the output stream after each chunk
+	 * @param buffer_size_policy
+	 *            Policy to size the buffers
+	 * @param statistics
+	 *            Statistics to record the reads and the writes in, {@literal null} to only record them in the
+	 *            aggregate {@link StreamStatistics}
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void pipeIOStream(InputStream input_stream, OutputStream output_stream, boolean flush_each_chunk,
+			BufferSizePolicy buffer_size_policy, StreamStatistics statistics) throws IOException, InterruptedException {
 		if (input_stream == null)
 			return;
 
-		byte[] buffer = new byte[BuildConfig.BUFFER_SIZE];
-		int count;
-		while ((count = input_stream.read(buffer)) != -1) {
-			if (Thread.currentThread().isInterrupted())
-				throw new InterruptedException("Streaming is interrupted.");
-			if (output_stream != null) {
-				output_stream.write(buffer, 0, count);
-				output_stream.flush();
+		statistics = StreamStatistics.forStream(statistics);
+		BufferSizePolicy.Sizer sizer = buffer_size_policy.newSizer(input_stream);
+		byte[] buffer = sizer.acquire();
+		try {
+			int count;
+			long time = statistics.start();
+			while ((count = input_stream.read(buffer)) != -1) {
+				time = statistics.recordRead(time, count);
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Streaming is interrupted.");
+				if (output_stream != null) {
+					output_stream.write(buffer, 0, count);
+					if (flush_each_chunk)
+						output_stream.flush();
+				}
+				time = statistics.recordProcessing(time);
+				buffer = sizer.next(buffer, count);
+			}
+			statistics.recordRead(time, -1);
+		} finally {
+			sizer.release(buffer);
+			statistics.finish();
+		}
+	}
+
+	/**
+	 * Higher-order method to process a channel through a pooled direct buffer; note that the channel is not closed at
+	 * the end of the processing! This method is blocking until the channel is fully processed or the calling thread is
+	 * interrupted.
+	 * 
+	 * @param processor
+	 *            Higher order byte buffer processor
+	 * @param channel
+	 *            Channel to read from, must be in blocking mode
+	 * @throws Exception
+	 */
+	public static void processChannel(IByteBufferProcessor processor, ReadableByteChannel channel) throws Exception {
+		if (channel == null)
+			return;
+		ByteBuffer buffer = BufferPool.getDefault().acquireDirect();
+		try {
+			while (channel.read(buffer) != -1) {
+				if (Thread.currentThread().isInterrupted())
+					break;
+				buffer.flip();
+				if (processor != null)
+					processor.processBuffer(buffer);
+				buffer.clear();
 			}
+		} finally {
+			BufferPool.getDefault().releaseDirect(buffer);
 		}
 	}
 
@@ -86,24 +288,124 @@ public class Streams {
 	 * @throws Exception
 	 */
 	public static void processStream(IBufferProcessor stream_processor, InputStream stream) throws Exception {
+		processStream(stream_processor, stream, BufferSizePolicy.DEFAULT);
+	}
+
+	/**
+	 * Higher-order method to process a stream with buffers sized by a policy; note that the stream is not closed at the
+	 * end of the processing! This method is blocking until the stream is fully processed or the calling thread is
+	 * interrupted.
+	 * 
+	 * @param stream_processor
+	 *            Higher order byte buffer processor
+	 * @param stream
+	 *            {@link InputStream} to read from
+	 * @param buffer_size_policy
+	 *            Policy to size the buffers
+	 * @throws Exception
+	 */
+	public static void processStream(IBufferProcessor stream_processor, InputStream stream,
+			BufferSizePolicy buffer_size_policy) throws Exception {
+		processStream(stream_processor, stream, buffer_size_policy, null);
+	}
+
+	/**
+	 * Higher-order method to process a stream with buffers sized by a policy, recording the time blocked reading the
+	 * stream and the time spent in the processor; note that the stream is not closed at the end of the processing!
+	 * This method is blocking until the stream is fully processed or the calling thread is interrupted.
+	 * 
+	 * @param stream_processor
+	 *            Higher order byte buffer processor
+	 * @param stream
+	 *            {@link InputStream} to read from
+	 * @param buffer_size_policy
+	 *            Policy to size the buffers
+	 * @param statistics
+	 *            Statistics to record the activity in, {@literal null} to only record it in the aggregate
+	 *            {@link StreamStatistics}
+	 * @throws Exception
+	 */
+	public static void processStream(IBufferProcessor stream_processor, InputStream stream,
+			BufferSizePolicy buffer_size_policy, StreamStatistics statistics) throws Exception {
 		if (stream == null)
 			return;
+		statistics = StreamStatistics.forStream(statistics);
 		int count;
-		byte[] buffer = new byte[BuildConfig.BUFFER_SIZE];
-		while ((count = stream.read(buffer)) != -1) {
-			if (Thread.currentThread().isInterrupted())
-				break;
-			if (stream_processor != null)
-				stream_processor.processBuffer(buffer, count);
+		BufferSizePolicy.Sizer sizer = buffer_size_policy.newSizer(stream);
+		byte[] buffer = sizer.acquire();
+		try {
+			long time = statistics.start();
+			while ((count = stream.read(buffer)) != -1) {
+				time = statistics.recordRead(time, count);
+				if (Thread.currentThread().isInterrupted())
+					break;
+				if (stream_processor != null)
+					stream_processor.processBuffer(buffer, count);
+				time = statistics.recordProcessing(time);
+				buffer = sizer.next(buffer, count);
+			}
+			if (count == -1)
+				statistics.recordRead(time, -1);
+		} finally {
+			sizer.release(buffer);
+			statistics.finish();
 		}
 	}
 
+	/**
+	 * Process several streams at once on the shared {@link StreamPump}; as in the single stream version, the streams
+	 * are not closed at the end of the processing. This method is blocking until all streams are fully processed or
+	 * the calling thread is interrupted, in which case the remaining streams are abandoned and the interrupted status
+	 * is kept.
+	 * 
+	 * @param stream_processors
+	 *            Processors for the streams, the i-th processor consumes the i-th stream; {@literal null} processor
+	 *            simply discards the corresponding stream
+	 * @param streams
+	 *            {@link InputStream}s to read from, {@literal null} elements are ignored
+	 * @throws Exception
+	 *             the first exception raised while reading or processing a stream; exceptions of the other failed
+	 *             streams are attached as suppressed exceptions
+	 */
 	public static void processStream(IBufferProcessor[] stream_processors, InputStream[] streams) throws Exception {
-		throw new UnsupportedOperationException("Parallel stream processing is unsupported!");
+		if (streams == null)
+			return;
+		if (stream_processors != null && stream_processors.length != streams.length)
+			throw new IllegalArgumentException("Number of processors and streams mismatch!");
+		StreamPump pump = StreamPump.getDefault();
+		StreamPump.Drain[] drains = new StreamPump.Drain[streams.length];
+		for (int i = 0; i < streams.length; i++) {
+			if (streams[i] != null)
+				drains[i] = pump.submit(streams[i], stream_processors == null ? null : stream_processors[i]);
+		}
+		Exception exception = null;
+		try {
+			for (StreamPump.Drain drain : drains) {
+				if (drain == null)
+					continue;
+				drain.await();
+				if (drain.getException() == null)
+					continue;
+				if (exception == null)
+					exception = drain.getException();
+				else
+					exception.addSuppressed(drain.getException());
+			}
+		} catch (InterruptedException e) {
+			for (StreamPump.Drain drain : drains) {
+				if (drain != null)
+					drain.cancel();
+			}
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (exception != null)
+			throw exception;
 	}
 
 	/**
-	 * Read the content of a text file and return it as a string
+	 * Read the content of a text file and return it as a string; a large file which is not modified while it is read
+	 * can rather be mapped in memory with {@link MappedFile#decode(Charset)}
 	 * 
 	 * @param file
 	 * @return
@@ -141,17 +443,25 @@ public class Streams {
 	 *             if the stream cannot be read
 	 */
 	public static String readTillEnd(InputStream inpstr) throws IOException {
-		byte[] buffer = new byte[BuildConfig.BUFFER_SIZE];
-		StringBuilder stream_content_builder = new StringBuilder();
-		int count;
-		while (!Thread.currentThread().isInterrupted() && (count = inpstr.read(buffer)) != -1) {
-			stream_content_builder.append(new String(buffer, 0, count));
+		byte[] buffer = BufferPool.getDefault().acquire();
+		StringAccumulator accumulator = new StringAccumulator();
+		accumulator.reset();
+		try {
+			int count;
+			while (!Thread.currentThread().isInterrupted() && (count = inpstr.read(buffer)) != -1) {
+				accumulator.processBuffer(buffer, count);
+			}
+		} finally {
+			BufferPool.getDefault().release(buffer);
 		}
-		return stream_content_builder.toString();
+		accumulator.finish();
+		return accumulator.getResult();
 	}
 
 	/**
-	 * Stream an {@link InputStream} to a local file
+	 * Stream an {@link InputStream} to a local file. If the stream is backed by a channel (for example, a
+	 * {@link FileInputStream}), the bytes are moved by the kernel via {@link FileChannel#transferTo} without passing
+	 * through a buffer in the JVM.
 	 * 
 	 * @param inpstr
 	 * @param out
@@ -160,6 +470,11 @@ public class Streams {
 	 */
 	public static void streamToFile(InputStream inpstr, File out, boolean deleteOnInterruption, boolean append)
 			throws IOException, InterruptedException {
+		ReadableByteChannel in_channel = getChannel(inpstr);
+		if (in_channel != null) {
+			streamToFile(in_channel, out, deleteOnInterruption, append);
+			return;
+		}
 		FileOutputStream out_str = new FileOutputStream(out, append);
 		try {
 			pipeIOStream(inpstr, out_str);
@@ -172,6 +487,129 @@ public class Streams {
 		}
 	}
 
+	/**
+	 * Stream an {@link InputStream} to a local file while computing the digest of the streamed bytes, so that the file
+	 * does not need to be read again to be verified. The output file is deleted (or cut back to its original length
+	 * when appending) if the digest does not match the expected one.
+	 * 
+	 * @param inpstr
+	 *            {@link InputStream} to read from
+	 * @param out
+	 *            File to write to
+	 * @param deleteOnInterruption
+	 *            {@literal true} to delete the output file if the streaming is interrupted
+	 * @param append
+	 *            {@literal true} to append the file instead of overwriting, only the appended bytes are digested
+	 * @param algorithm
+	 *            Name of the digest algorithm, see {@link DigestingProcessor}
+	 * @param expected_digest
+	 *            Expected digest in hexadecimal, {@literal null} to accept any digest
+	 * @return The digest of the streamed bytes in hexadecimal
+	 * @throws IOException
+	 *             if the streaming fails, in particular {@link DigestingProcessor.MismatchException} if the digest does
+	 *             not match
+	 * @throws InterruptedException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static String streamToFile(InputStream inpstr, File out, boolean deleteOnInterruption, boolean append,
+			String algorithm, String expected_digest) throws IOException, InterruptedException,
+			NoSuchAlgorithmException {
+		// An unknown algorithm is reported before the file is touched
+		DigestingProcessor digester = new DigestingProcessor(algorithm, null);
+		long original_length = append ? out.length() : 0;
+		FileOutputStream out_str = new FileOutputStream(out, append);
+		try {
+			digester.setDownstream(new StreamRedirector(out_str.getChannel()));
+			ReadableByteChannel in_channel = getChannel(inpstr);
+			if (in_channel != null)
+				processChannel(digester, in_channel);
+			else
+				processStream(digester, inpstr);
+		} catch (ClosedByInterruptException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			out_str.close();
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			if (deleteOnInterruption)
+				out.delete();
+			throw new InterruptedException("Streaming is interrupted.");
+		}
+		try {
+			digester.verify(expected_digest);
+		} catch (DigestingProcessor.MismatchException e) {
+			// Only the appended bytes are unverified, the original content is kept
+			if (append)
+				truncate(out, original_length);
+			else
+				out.delete();
+			throw e;
+		}
+		return digester.getHexDigest();
+	}
+
+	/**
+	 * Stream a (blocking) {@link ReadableByteChannel} such as a socket channel to a local file using
+	 * {@link FileChannel#transferFrom} (or {@link FileChannel#transferTo} if the source is a {@link FileChannel}).
+	 * 
+	 * @param in_channel
+	 *            Channel to read from, must be in blocking mode
+	 * @param out
+	 *            File to write to
+	 * @param deleteOnInterruption
+	 *            {@literal true} to delete the output file if the transfer is interrupted
+	 * @param append
+	 *            {@literal true} to append the file instead of overwriting
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void streamToFile(ReadableByteChannel in_channel, File out, boolean deleteOnInterruption,
+			boolean append) throws IOException, InterruptedException {
+		FileOutputStream out_str = new FileOutputStream(out, append);
+		try {
+			transfer(in_channel, out_str.getChannel());
+		} catch (InterruptedException e) {
+			if (deleteOnInterruption)
+				out.delete();
+			throw e;
+		} finally {
+			out_str.close();
+		}
+	}
+
+	/**
+	 * Higher-order method to supply a channel from a pooled direct buffer; note that the channel is not closed at the
+	 * end of the processing! This method is blocking until the producer is exhausted or the calling thread is
+	 * interrupted.
+	 * 
+	 * @param producer
+	 *            Higher order producer to produce byte buffers
+	 * @param channel
+	 *            Channel to write to
+	 * @throws Exception
+	 */
+	public static void supplyChannel(IByteBufferProducer producer, WritableByteChannel channel) throws Exception {
+		if (channel == null || producer == null)
+			return;
+		ByteBuffer buffer = BufferPool.getDefault().acquireDirect();
+		try {
+			while (producer.fillBuffer(buffer) != -1) {
+				if (Thread.currentThread().isInterrupted())
+					break;
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				buffer.clear();
+			}
+		} finally {
+			BufferPool.getDefault().releaseDirect(buffer);
+		}
+	}
+
 	/**
 	 * Higher-order method to process a stream; note that the stream is not closed at the end of the processing! This
 	 * method is blocking until the stream is fully processed or the calling thread is interrupted.
@@ -184,14 +622,145 @@ public class Streams {
 	 * @throws Exception
 	 */
 	public static void supplyStream(IBufferProducer stream_producer, OutputStream stream) throws Exception {
+		supplyStream(stream_producer, stream, null);
+	}
+
+	/**
+	 * Higher-order method to supply a stream, recording the time spent producing the bytes (as reads) and writing them
+	 * to the stream (as processing); a long writing time means the reader of the stream does not keep up
+	 * 
+	 * @param stream_producer
+	 *            Higher order producer to produce byte buffers
+	 * @param stream
+	 *            {@link OutputStream} to write to
+	 * @param statistics
+	 *            Statistics to record the activity in, {@literal null} to only record it in the aggregate
+	 *            {@link StreamStatistics}
+	 * @throws Exception
+	 */
+	public static void supplyStream(IBufferProducer stream_producer, OutputStream stream, StreamStatistics statistics)
+			throws Exception {
 		if (stream == null || stream_producer == null)
 			return;
+		statistics = StreamStatistics.forStream(statistics);
 		int count;
-		byte[] buffer = new byte[BuildConfig.BUFFER_SIZE];
-		while ((count = stream_producer.fillBuffer(buffer)) != -1) {
-			if (Thread.currentThread().isInterrupted())
-				break;
-			stream.write(buffer, 0, count);
+		byte[] buffer = BufferPool.getDefault().acquire();
+		try {
+			long time = statistics.start();
+			while ((count = stream_producer.fillBuffer(buffer)) != -1) {
+				time = statistics.recordRead(time, count);
+				if (Thread.currentThread().isInterrupted())
+					break;
+				stream.write(buffer, 0, count);
+				time = statistics.recordProcessing(time);
+			}
+			if (count == -1)
+				statistics.recordRead(time, -1);
+		} finally {
+			BufferPool.getDefault().release(buffer);
+			statistics.finish();
+		}
+	}
+
+	/**
+	 * Move all remaining bytes of a channel to another, by the kernel if either of them is a {@link FileChannel} and
+	 * through a pooled direct buffer otherwise. The kernel moves chunks of at most {@link #TRANSFER_CHUNK_SIZE} bytes
+	 * so that interruption is checked regularly. Positions of both channels are advanced as if the bytes were read and
+	 * written.
+	 * 
+	 * The kernel transfer from a {@link FileChannel} is bounded by the size of the file, which is 0 for special files
+	 * such as FIFOs or those of {@code /proc}: once the transfer stops short of the size, or if there is no size at
+	 * all, the rest of the source is read through a pooled direct buffer until its end.
+	 * 
+	 * @return Number of bytes transferred
+	 */
+	private static long transfer(ReadableByteChannel in_channel, WritableByteChannel out_channel) throws IOException,
+			InterruptedException {
+		FileChannel out_file = null;
+		long out_position = 0;
+		if (out_channel instanceof FileChannel) {
+			try {
+				out_position = ((FileChannel) out_channel).position();
+				out_file = (FileChannel) out_channel;
+			} catch (IOException e) {
+				// Not seekable, such as a FIFO: written to as any other channel
+			}
+		}
+		long total = 0;
+		try {
+			if (in_channel instanceof FileChannel) {
+				FileChannel in_file = (FileChannel) in_channel;
+				// Special files have no size, FIFOs cannot even tell their position
+				long size = in_file.size();
+				long in_position = size > 0 ? in_file.position() : 0;
+				while (in_position < size) {
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedException("Streaming is interrupted.");
+					long count = in_file.transferTo(in_position, Math.min(TRANSFER_CHUNK_SIZE, size - in_position),
+							out_channel);
+					if (count <= 0)
+						break;
+					in_position += count;
+					total += count;
+				}
+				if (size > 0)
+					in_file.position(in_position);
+				if (in_position < size || size == 0)
+					total += transferBuffered(in_file, out_channel);
+			} else if (out_file != null) {
+				long count;
+				do {
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedException("Streaming is interrupted.");
+					count = out_file.transferFrom(in_channel, out_position + total, TRANSFER_CHUNK_SIZE);
+					total += count;
+				} while (count > 0);
+			} else {
+				total = transferBuffered(in_channel, out_channel);
+			}
+		} catch (ClosedByInterruptException e) {
+			throw new InterruptedException("Streaming is interrupted.");
+		}
+		if (out_file != null)
+			out_file.position(out_position + total);
+		return total;
+	}
+
+	/**
+	 * Move all remaining bytes of a channel to another through a pooled direct buffer, when the kernel cannot transfer
+	 * them
+	 * 
+	 * @return Number of bytes transferred
+	 */
+	private static long transferBuffered(ReadableByteChannel in_channel, WritableByteChannel out_channel)
+			throws IOException, InterruptedException {
+		long total = 0;
+		ByteBuffer buffer = BufferPool.getDefault().acquireDirect();
+		try {
+			while (in_channel.read(buffer) != -1) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Streaming is interrupted.");
+				buffer.flip();
+				total += buffer.remaining();
+				while (buffer.hasRemaining())
+					out_channel.write(buffer);
+				buffer.clear();
+			}
+		} finally {
+			BufferPool.getDefault().releaseDirect(buffer);
+		}
+		return total;
+	}
+
+	/**
+	 * Cut a file back to a length, for instance to undo an append
+	 */
+	private static void truncate(File file, long length) throws IOException {
+		RandomAccessFile random_access_file = new RandomAccessFile(file, "rw");
+		try {
+			random_access_file.setLength(length);
+		} finally {
+			random_access_file.close();
 		}
 	}
 
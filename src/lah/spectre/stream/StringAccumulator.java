@@ -1,34 +1,213 @@
 package lah.spectre.stream;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
 /**
- * Implementation of {@link IBufferProcessor} that accumulate the buffers into a single {@link StringBuilder}. This is
- * handy to collect standard output of an external process.
+ * Implementation of {@link IBufferProcessor} that accumulate the buffers into a single character buffer. This is handy
+ * to collect standard output of an external process.
+ * 
+ * The bytes are decoded with a single reusable {@link CharsetDecoder}; a multi-byte character split between two
+ * buffers is carried over and decoded once its remaining bytes arrive. Malformed input is replaced rather than
+ * reported, including a character truncated by the end of the input once {@link #finish()} is called.
  * 
  * @author L.A.H.
  * 
  */
-public class StringAccumulator implements IBufferProcessor {
+public class StringAccumulator implements IBufferProcessor, IByteBufferProcessor {
+
+	/**
+	 * Maximum number of bytes of an incomplete character carried over to the next buffer
+	 */
+	private static final int MAX_CARRY = 16;
+
+	/**
+	 * Bytes of the incomplete character at the end of the previous buffer
+	 */
+	private final byte[] carry = new byte[MAX_CARRY];
+
+	private final ByteBuffer carry_buffer = ByteBuffer.wrap(carry);
+
+	private int carry_length;
+
+	private final CharsetDecoder decoder;
+
+	/**
+	 * Initial capacity of the character buffer
+	 */
+	private final int initial_capacity;
+
+	/**
+	 * The last byte array wrapped and its wrapper; processors are usually fed with the same (pooled) array over and
+	 * over again
+	 */
+	private byte[] input_array;
 
-	private StringBuilder result;
+	private ByteBuffer input_buffer;
 
+	private boolean is_finished;
+
+	/**
+	 * Accumulated characters in result[0..length-1]
+	 */
+	private char[] result;
+
+	private CharBuffer result_buffer;
+
+	/**
+	 * Construct an accumulator decoding with the platform default {@link Charset}
+	 */
+	public StringAccumulator() {
+		this(Charset.defaultCharset(), 0);
+	}
+
+	/**
+	 * Construct an accumulator decoding with a specified {@link Charset}
+	 * 
+	 * @param charset
+	 */
+	public StringAccumulator(Charset charset) {
+		this(charset, 0);
+	}
+
+	/**
+	 * Construct an accumulator with a pre-sized character buffer
+	 * 
+	 * @param charset
+	 *            Encoding of the bytes to accumulate
+	 * @param capacity
+	 *            Expected number of characters, the buffer is still expanded if this is exceeded
+	 */
+	public StringAccumulator(Charset charset, int capacity) {
+		decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		initial_capacity = Math.max(capacity, 16);
+	}
+
+	/**
+	 * Construct an accumulator decoding with the platform default {@link Charset} with a pre-sized character buffer
+	 * 
+	 * @param capacity
+	 *            Expected number of characters
+	 */
+	public StringAccumulator(int capacity) {
+		this(Charset.defaultCharset(), capacity);
+	}
+
+	/**
+	 * Decode the input into the result buffer, expanding the latter as needed
+	 */
+	private void decode(ByteBuffer input, boolean end_of_input) {
+		while (decoder.decode(input, result_buffer, end_of_input).isOverflow())
+			expand();
+	}
+
+	/**
+	 * Double the capacity of the result buffer
+	 */
+	private void expand() {
+		char[] expanded = new char[result.length * 2];
+		System.arraycopy(result, 0, expanded, 0, result_buffer.position());
+		CharBuffer expanded_buffer = CharBuffer.wrap(expanded);
+		expanded_buffer.position(result_buffer.position());
+		result = expanded;
+		result_buffer = expanded_buffer;
+	}
+
+	/**
+	 * Mark the end of the input: the bytes of an incomplete character left at the end of the last buffer are decoded
+	 * as the replacement character instead of being dropped. No more input is accepted until {@link #reset()}: the
+	 * buffers processed in between raise an {@link IllegalStateException}.
+	 */
+	public void finish() {
+		if (result == null)
+			reset();
+		if (is_finished)
+			return;
+		carry_buffer.limit(carry_length).position(0);
+		decode(carry_buffer, true);
+		carry_length = 0;
+		while (decoder.flush(result_buffer).isOverflow())
+			expand();
+		is_finished = true;
+	}
+
+	/**
+	 * Get the characters accumulated so far; the bytes of a trailing incomplete character are only accounted for
+	 * once the input is marked as ended with {@link #finish()}
+	 * 
+	 * @return The accumulated string or {@literal null} if nothing was processed yet
+	 */
 	public String getResult() {
-		return (result == null ? null : result.toString());
+		return (result == null ? null : new String(result, 0, result_buffer.position()));
+	}
+
+	/**
+	 * Get the number of characters accumulated so far
+	 * 
+	 * @return Number of characters decoded, which excludes the bytes of a trailing incomplete character
+	 */
+	public int length() {
+		return (result == null ? 0 : result_buffer.position());
 	}
 
 	@Override
 	public void processBuffer(byte[] buffer, int count) {
-		String sbuf = new String(buffer, 0, count);
+		if (buffer != input_array) {
+			input_array = buffer;
+			input_buffer = ByteBuffer.wrap(buffer);
+		}
+		input_buffer.limit(count).position(0);
+		processBuffer(input_buffer);
+	}
+
+	/**
+	 * Decode and accumulate the bytes between the position and the limit of a buffer; the buffer is fully consumed
+	 * 
+	 * @param buffer
+	 * @throws IllegalStateException
+	 *             if the accumulator is finished and not reset since
+	 */
+	@Override
+	public void processBuffer(ByteBuffer buffer) {
 		if (result == null)
-			result = new StringBuilder(sbuf);
-		else
-			result.append(sbuf);
+			reset();
+		if (is_finished)
+			throw new IllegalStateException("Accumulator is finished, reset it to accumulate more input!");
+		if (carry_length > 0) {
+			// Complete the pending character with the first bytes of this buffer
+			int start = buffer.position();
+			int taken = Math.min(buffer.remaining(), MAX_CARRY - carry_length);
+			buffer.get(carry, carry_length, taken);
+			carry_buffer.limit(carry_length + taken).position(0);
+			decode(carry_buffer, false);
+			if (carry_buffer.position() < carry_length) {
+				// Still incomplete: this buffer is too short to terminate the character
+				carry_buffer.compact();
+				carry_length = carry_buffer.position();
+				return;
+			}
+			buffer.position(start + carry_buffer.position() - carry_length);
+			carry_length = 0;
+		}
+		decode(buffer, false);
+		// Keep the bytes of the trailing incomplete character for the next buffer
+		carry_length = buffer.remaining();
+		buffer.get(carry, 0, carry_length);
 	}
 
 	public void reset() {
-		if (result == null)
-			result = new StringBuilder();
-		else
-			result.delete(0, result.length());
+		if (result == null) {
+			result = new char[initial_capacity];
+			result_buffer = CharBuffer.wrap(result);
+		} else
+			result_buffer.clear();
+		decoder.reset();
+		carry_length = 0;
+		is_finished = false;
 	}
 
 }
@@ -0,0 +1,212 @@
+package lah.spectre.stream;
+
+import java.nio.charset.Charset;
+
+/**
+ * Implementation of {@link IBufferProcessor} that only retains the first bytes and the last bytes (or lines) of a
+ * stream in fixed size buffers; everything in between is counted and dropped. This is handy to collect the standard
+ * output of an external process which could be arbitrarily large when only the end of it is needed to diagnose
+ * failures. Memory is allocated once at construction, never while processing.
+ * 
+ * Note that when the content is decoded, a multi-byte character cut at the start of the tail is replaced.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class TailAccumulator implements IBufferProcessor {
+
+	/**
+	 * Retained first bytes in head[0..head_length-1]
+	 */
+	private final byte[] head;
+
+	private int head_length;
+
+	/**
+	 * Maximum number of lines to retain in the tail, 0 for no line limit
+	 */
+	private final int max_lines;
+
+	/**
+	 * Number of line feeds seen in the tail region
+	 */
+	private long newline_count;
+
+	/**
+	 * Stream offsets of the last line feeds
+	 */
+	private final long[] newline_offsets;
+
+	/**
+	 * Circular buffer of the last bytes; the byte at stream offset p (p >= head_length) is stored at
+	 * tail[(p - head_length) % tail.length]
+	 */
+	private final byte[] tail;
+
+	/**
+	 * Total number of bytes processed
+	 */
+	private long total_count;
+
+	/**
+	 * Construct an accumulator retaining the first {@code head_capacity} bytes and the last {@code tail_capacity}
+	 * bytes
+	 * 
+	 * @param head_capacity
+	 * @param tail_capacity
+	 */
+	public TailAccumulator(int head_capacity, int tail_capacity) {
+		this(head_capacity, tail_capacity, 0);
+	}
+
+	/**
+	 * Construct an accumulator retaining the first {@code head_capacity} bytes and at most {@code max_lines} last lines
+	 * which fit in {@code tail_capacity} bytes
+	 * 
+	 * @param head_capacity
+	 *            Number of first bytes to retain, can be 0
+	 * @param tail_capacity
+	 *            Number of last bytes to retain
+	 * @param max_lines
+	 *            Maximum number of last lines to retain or 0 to retain as many bytes as possible
+	 */
+	public TailAccumulator(int head_capacity, int tail_capacity, int max_lines) {
+		if (head_capacity < 0 || tail_capacity <= 0 || max_lines < 0)
+			throw new IllegalArgumentException("Invalid capacity!");
+		head = new byte[head_capacity];
+		tail = new byte[tail_capacity];
+		this.max_lines = max_lines;
+		newline_offsets = (max_lines > 0 ? new long[max_lines + 1] : null);
+	}
+
+	/**
+	 * Construct an accumulator retaining only the last {@code tail_capacity} bytes
+	 * 
+	 * @param tail_capacity
+	 */
+	public TailAccumulator(int tail_capacity) {
+		this(0, tail_capacity, 0);
+	}
+
+	/**
+	 * Get the retained first bytes
+	 * 
+	 * @return A new array containing the first bytes
+	 */
+	public byte[] getHead() {
+		byte[] result = new byte[head_length];
+		System.arraycopy(head, 0, result, 0, head_length);
+		return result;
+	}
+
+	/**
+	 * Get the retained content decoded with the platform default {@link Charset}, with a marker line in place of the
+	 * skipped bytes if there are any
+	 * 
+	 * @return
+	 */
+	public String getResult() {
+		return getResult(Charset.defaultCharset());
+	}
+
+	/**
+	 * Get the retained content, with a marker line in place of the skipped bytes if there are any
+	 * 
+	 * @param charset
+	 *            Encoding of the content
+	 * @return
+	 */
+	public String getResult(Charset charset) {
+		String head_string = new String(head, 0, head_length, charset);
+		long skipped = getSkippedCount();
+		if (skipped == 0)
+			return head_string + new String(getTail(), charset);
+		return head_string + "\n[... " + skipped + " bytes skipped ...]\n" + new String(getTail(), charset);
+	}
+
+	/**
+	 * Get the number of bytes dropped between the head and the tail
+	 * 
+	 * @return
+	 */
+	public long getSkippedCount() {
+		return getTailStart() - head_length;
+	}
+
+	/**
+	 * Get the retained last bytes (or lines)
+	 * 
+	 * @return A new array containing the last bytes
+	 */
+	public byte[] getTail() {
+		long start = getTailStart();
+		byte[] result = new byte[(int) (total_count - start)];
+		int index = (int) ((start - head_length) % tail.length);
+		int first = Math.min(result.length, tail.length - index);
+		System.arraycopy(tail, index, result, 0, first);
+		System.arraycopy(tail, 0, result, first, result.length - first);
+		return result;
+	}
+
+	/**
+	 * Get the stream offset of the first retained byte of the tail
+	 */
+	private long getTailStart() {
+		long start = Math.max(head_length, total_count - tail.length);
+		if (max_lines > 0 && total_count > head_length) {
+			// the last line is complete if the content ends with a line feed, otherwise it is still counted as a line
+			int index = (int) ((total_count - 1 - head_length) % tail.length);
+			int needed = (tail[index] == '\n' ? max_lines + 1 : max_lines);
+			if (newline_count >= needed) {
+				long newline_offset = newline_offsets[(int) ((newline_count - needed) % newline_offsets.length)];
+				start = Math.max(start, newline_offset + 1);
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Get the total number of bytes processed
+	 * 
+	 * @return
+	 */
+	public long getTotalCount() {
+		return total_count;
+	}
+
+	@Override
+	public void processBuffer(byte[] buffer, int count) {
+		int offset = 0;
+		if (head_length < head.length) {
+			offset = Math.min(count, head.length - head_length);
+			System.arraycopy(buffer, 0, head, head_length, offset);
+			head_length += offset;
+			total_count += offset;
+		}
+		if (offset == count)
+			return;
+		if (newline_offsets != null) {
+			for (int i = offset; i < count; i++) {
+				if (buffer[i] == '\n')
+					newline_offsets[(int) (newline_count++ % newline_offsets.length)] = total_count + i - offset;
+			}
+		}
+		// only the last tail.length bytes of the buffer can survive
+		int skipped = Math.max(0, count - offset - tail.length);
+		total_count += skipped;
+		offset += skipped;
+		int index = (int) ((total_count - head_length) % tail.length);
+		int length = count - offset;
+		int first = Math.min(length, tail.length - index);
+		System.arraycopy(buffer, offset, tail, index, first);
+		System.arraycopy(buffer, offset + first, tail, 0, length - first);
+		total_count += length;
+	}
+
+	public void reset() {
+		head_length = 0;
+		total_count = 0;
+		newline_count = 0;
+	}
+
+}
@@ -0,0 +1,264 @@
+package lah.spectre.stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Write-behind variant of {@link StreamRedirector}: the buffers are copied into a front buffer while a writer thread
+ * writes the back buffer to the output stream, so the thread reading the stream (and hence the external process
+ * writing it) is not held up by a slow disk. The buffers are swapped, and the output stream flushed, once the front
+ * buffer reaches a number of bytes, once it holds bytes older than a time interval, or on {@link #flush()}.
+ * 
+ * {@link #close()} must be invoked at the end to write the remaining bytes and close the output stream.
+ * 
+ * @author L.A.H.
+ * 
+ */
+public class WriteBehindRedirector implements IBufferProcessor, Flushable, Closeable {
+
+	private class Writer implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					synchronized (WriteBehindRedirector.this) {
+						while (back_length == 0) {
+							if (front_length > 0
+									&& (front_length >= flush_bytes || closed || flush_requested || isFrontExpired())) {
+								swap();
+								break;
+							}
+							if (closed)
+								return;
+							if (front_length > 0 && flush_interval > 0)
+								WriteBehindRedirector.this.wait(Math.max(1, front_time + flush_interval
+										- System.currentTimeMillis()));
+							else
+								WriteBehindRedirector.this.wait();
+						}
+					}
+					// Write outside of the lock so that the producer can keep filling the front buffer
+					out_stream.write(back, 0, back_length);
+					out_stream.flush();
+					synchronized (WriteBehindRedirector.this) {
+						back_length = 0;
+						if (front_length == 0)
+							flush_requested = false;
+						WriteBehindRedirector.this.notifyAll();
+					}
+				}
+			} catch (Exception e) {
+				synchronized (WriteBehindRedirector.this) {
+					exception = e;
+					back_length = 0;
+					front_length = 0;
+				}
+			} finally {
+				synchronized (WriteBehindRedirector.this) {
+					finished = true;
+					WriteBehindRedirector.this.notifyAll();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Default size of each of the two buffers
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Default maximum time (in milliseconds) buffered bytes wait before being written
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/**
+	 * Buffer being written in back[0..back_length-1]
+	 */
+	private byte[] back;
+
+	private int back_length;
+
+	private boolean closed;
+
+	private Exception exception;
+
+	private boolean finished;
+
+	/**
+	 * Number of buffered bytes triggering a write
+	 */
+	private final int flush_bytes;
+
+	/**
+	 * Maximum time buffered bytes wait before being written, 0 for no limit
+	 */
+	private final long flush_interval;
+
+	private boolean flush_requested;
+
+	/**
+	 * Buffer being filled in front[0..front_length-1]
+	 */
+	private byte[] front;
+
+	private int front_length;
+
+	/**
+	 * Time the first byte currently in the front buffer was buffered
+	 */
+	private long front_time;
+
+	private final OutputStream out_stream;
+
+	/**
+	 * Construct an instance that writes behind to a file with the default buffer size and flush interval
+	 * 
+	 * @param output_file
+	 * @param append
+	 * @throws FileNotFoundException
+	 */
+	public WriteBehindRedirector(File output_file, boolean append) throws FileNotFoundException {
+		this(new FileOutputStream(output_file, append), DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE,
+				DEFAULT_FLUSH_INTERVAL, null);
+	}
+
+	/**
+	 * Construct an instance
+	 * 
+	 * @param output_stream
+	 *            Stream to write to, it is closed by {@link #close()}
+	 * @param buffer_size
+	 *            Size of each of the two buffers
+	 * @param flush_bytes
+	 *            Number of buffered bytes triggering a write, at most {@code buffer_size}
+	 * @param flush_interval
+	 *            Maximum time in milliseconds buffered bytes wait before being written, 0 to only write when
+	 *            {@code flush_bytes} are buffered or on explicit {@link #flush()}
+	 * @param executor
+	 *            Executor to run the writer, which occupies its thread until {@link #close()}; {@literal null} to start
+	 *            a new daemon thread
+	 */
+	public WriteBehindRedirector(OutputStream output_stream, int buffer_size, int flush_bytes, long flush_interval,
+			Executor executor) {
+		if (buffer_size <= 0 || flush_bytes <= 0 || flush_bytes > buffer_size)
+			throw new IllegalArgumentException("Invalid buffer size!");
+		out_stream = output_stream;
+		front = new byte[buffer_size];
+		back = new byte[buffer_size];
+		this.flush_bytes = flush_bytes;
+		this.flush_interval = flush_interval;
+		Writer writer = new Writer();
+		if (executor == null) {
+			Thread thread = new Thread(writer, "WriteBehindRedirector");
+			thread.setDaemon(true);
+			thread.start();
+		} else
+			executor.execute(writer);
+	}
+
+	/**
+	 * Write all buffered bytes, wait for the writer to finish and close the output stream
+	 * 
+	 * @throws IOException
+	 *             if writing failed
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			try {
+				while (!finished)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the writer to finish", e);
+			}
+		}
+		out_stream.close();
+		rethrow();
+	}
+
+	/**
+	 * Write all bytes buffered so far and wait until they are written
+	 * 
+	 * @throws IOException
+	 *             if writing failed or the waiting is interrupted
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		flush_requested = true;
+		notifyAll();
+		try {
+			while ((front_length > 0 || back_length > 0) && !finished)
+				wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while flushing", e);
+		}
+		rethrow();
+	}
+
+	private boolean isFrontExpired() {
+		return flush_interval > 0 && System.currentTimeMillis() - front_time >= flush_interval;
+	}
+
+	@Override
+	public synchronized void processBuffer(byte[] buffer, int count) throws Exception {
+		if (closed)
+			throw new IOException("Redirector is closed");
+		int offset = 0;
+		while (offset < count) {
+			rethrow();
+			if (front_length == front.length) {
+				// Front buffer is full: hand it over if the writer is idle, otherwise wait for it
+				if (back_length == 0)
+					swap();
+				else
+					wait();
+				continue;
+			}
+			if (front_length == 0) {
+				front_time = System.currentTimeMillis();
+				// Let the writer start timing the new bytes
+				if (flush_interval > 0)
+					notifyAll();
+			}
+			int length = Math.min(count - offset, front.length - front_length);
+			System.arraycopy(buffer, offset, front, front_length, length);
+			front_length += length;
+			offset += length;
+			if (front_length >= flush_bytes && back_length == 0)
+				swap();
+		}
+	}
+
+	private void rethrow() throws IOException {
+		if (exception instanceof IOException)
+			throw (IOException) exception;
+		if (exception != null)
+			throw new IOException(exception);
+	}
+
+	/**
+	 * Hand the front buffer to the writer; must hold the lock and the back buffer must be free
+	 */
+	private void swap() {
+		byte[] free = back;
+		back = front;
+		back_length = front_length;
+		front = free;
+		front_length = 0;
+		notifyAll();
+	}
+
+}